@@ -0,0 +1,52 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// One full compaction of a store where every key was written rounds times, so all but one round is
+// garbage. The store is rebuilt before each iteration, the merge runs unthrottled.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactionBenchmark {
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    @Param({"100000"})
+    int keyCount;
+
+    @Param({"128", "1024"})
+    int valueSize;
+
+    @Param({"2", "4"})
+    int rounds;
+
+    private Path dir;
+    private Worker engine;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = Engines.tempDir();
+        engine = Engines.open(dir, SEGMENT_SIZE, Durability.NONE, 0);
+        Engines.fill(engine, keyCount, valueSize, rounds);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        Compactor compactor = engine.compactor;
+        System.out.printf("  read %.1f MB, reclaimed %.1f MB, %.1f MB/s%n", compactor.getBytesRead() / 1048576.0,
+                compactor.getReclaimedBytes() / 1048576.0, compactor.getThroughputMBps());
+        Engines.close(engine);
+        Engines.delete(dir);
+    }
+
+    @Benchmark
+    public void compact() {
+        engine.compactor.compact();
+    }
+}
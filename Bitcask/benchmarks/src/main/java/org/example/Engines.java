@@ -0,0 +1,85 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+// Opens throwaway engines in a temporary directory for the benchmarks.
+final class Engines {
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    static final int WRITE_BATCH = 256;
+    static final int WRITE_QUEUE = 8192;
+    static final long COMPACTION_BATCH = 256L * 1024 * 1024;
+
+    private Engines() {}
+
+    static Path tempDir() throws IOException {
+        return Files.createTempDirectory("bitcask-bench-");
+    }
+
+    // Unthrottled compaction, no group commit window: the benchmarks measure the engine, not the pacing.
+    static Worker open(Path dir, int segmentSize, Durability durability, long cacheBytes) throws IOException {
+        return new Worker(0, dir.resolve("logs") + File.separator, dir.resolve("hints") + File.separator,
+                segmentSize, WRITE_BUFFER_SIZE, 64, 1024, Runtime.getRuntime().availableProcessors(), WRITE_BATCH,
+                WRITE_QUEUE, COMPACTION_BATCH, new IoThrottle(0), durability, 0, 1000, cacheBytes);
+    }
+
+    // Stops the appender and lets go of the files, the directory stays.
+    static void close(Worker engine) throws IOException {
+        engine.appender.stop();
+        engine.activeChannel.close();
+        engine.segments.clear();
+    }
+
+    // keyCount keys 0..keyCount-1, written rounds times over in batches, every value valueSize bytes.
+    static void fill(Worker engine, int keyCount, int valueSize, int rounds) {
+        byte[] value = value(valueSize, 42);
+        int batch = 1000;
+        for (int round = 0; round < rounds; round++) {
+            for (int start = 0; start < keyCount; start += batch) {
+                int count = Math.min(batch, keyCount - start);
+                long[] keys = new long[count];
+                byte[][] values = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    keys[i] = start + i;
+                    values[i] = value;
+                }
+                engine.putAll(keys, values).join();
+            }
+        }
+    }
+
+    static byte[] value(int size, long seed) {
+        byte[] value = new byte[size];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < size; i++) {
+            // Printable, the text protocol can carry it
+            value[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return value;
+    }
+
+    // Random keys in [0, keyCount), a power of two of them so the benchmarks can cycle with a mask.
+    static long[] keys(int keyCount, int count, long seed) {
+        long[] keys = new long[count];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextInt(keyCount);
+        }
+        return keys;
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
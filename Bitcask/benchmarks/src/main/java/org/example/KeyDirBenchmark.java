@@ -0,0 +1,62 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The in-memory index alone. Lookups of present and absent keys, and overwrites of present keys,
+// which is what the appender does for every published write once the keys are known.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyDirBenchmark {
+    private static final int KEYS = 1 << 20;
+
+    @Param({"10000", "1000000", "10000000"})
+    int keyCount;
+
+    private KeyDir keyDir;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        long[] keys;
+        final KeyDir.Entry entry = new KeyDir.Entry();
+        int next;
+
+        @Setup
+        public void setup(KeyDirBenchmark benchmark) {
+            keys = Engines.keys(benchmark.keyCount, KEYS, Thread.currentThread().threadId());
+        }
+
+        long nextKey() {
+            return keys[next++ & (KEYS - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        keyDir = new KeyDir(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keyDir.put(i, i / 100_000, i % 100_000 * 128, 128, i);
+        }
+    }
+
+    @Benchmark
+    public boolean get(Cursor cursor) {
+        return keyDir.get(cursor.nextKey(), cursor.entry);
+    }
+
+    @Benchmark
+    public boolean getMissing(Cursor cursor) {
+        return keyDir.get(cursor.nextKey() + keyCount, cursor.entry);
+    }
+
+    @Benchmark
+    public boolean put(Cursor cursor) {
+        long key = cursor.nextKey();
+        return keyDir.put(key, 1, (int) key, 128, key, cursor.entry);
+    }
+}
@@ -0,0 +1,175 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// The whole request path: a full server in this JVM, one blocking binary protocol client per benchmark
+// thread over loopback, one request in flight per client. Sampled, so the report has the latency
+// percentiles; run with -t for concurrent clients.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    @Param({"128", "1024"})
+    int valueSize;
+
+    @Param({"100000"})
+    int keyCount;
+
+    @Param({"GROUP"})
+    Durability durability;
+
+    @Param({"4"})
+    int shards;
+
+    private Path dir;
+    private int port;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final int KEYS = 1 << 16;
+        SocketChannel channel;
+        ByteBuffer request;
+        ByteBuffer response;
+        byte[] value;
+        long[] keys;
+        int next;
+
+        @Setup
+        public void setup(LoopbackBenchmark benchmark) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress("localhost", benchmark.port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            value = Engines.value(benchmark.valueSize, 11);
+            request = ByteBuffer.allocateDirect(BinaryProtocol.REQUEST_HEADER_SIZE + value.length);
+            response = ByteBuffer.allocateDirect(BinaryProtocol.RESPONSE_HEADER_SIZE + value.length);
+            keys = Engines.keys(benchmark.keyCount, KEYS, Thread.currentThread().threadId());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+
+        long nextKey() {
+            return keys[next++ & (KEYS - 1)];
+        }
+
+        // Sends one request and waits for its response, returns the response status.
+        byte call(byte opcode, long key, byte[] payload) throws IOException {
+            int requestId = next;
+            int length = payload != null ? payload.length : 0;
+            if (request.capacity() < BinaryProtocol.REQUEST_HEADER_SIZE + length) {
+                request = ByteBuffer.allocateDirect(BinaryProtocol.REQUEST_HEADER_SIZE + length);
+            }
+            request.clear();
+            request.put(BinaryProtocol.MAGIC).put(opcode).put((byte) 0).putInt(requestId).putLong(key).putInt(length);
+            if (payload != null) request.put(payload);
+            request.flip();
+            while (request.hasRemaining()) channel.write(request);
+
+            response.clear().limit(BinaryProtocol.RESPONSE_HEADER_SIZE);
+            readFully();
+            int valueLength = response.getInt(6);
+            if (response.getInt(2) != requestId) throw new IOException("Response out of order");
+            if (valueLength > response.capacity() - BinaryProtocol.RESPONSE_HEADER_SIZE) {
+                throw new IOException("Unexpected response of " + valueLength + " bytes");
+            }
+            response.limit(BinaryProtocol.RESPONSE_HEADER_SIZE + valueLength);
+            readFully();
+            return response.get(1);
+        }
+
+        private void readFully() throws IOException {
+            while (response.hasRemaining()) {
+                if (channel.read(response) < 0) throw new IOException("Server closed the connection");
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Engines.tempDir();
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Properties config = new Properties();
+        config.setProperty("server.port", String.valueOf(port));
+        config.setProperty("server.logs", dir.resolve("logs") + "/");
+        config.setProperty("server.hints", dir.resolve("hints") + "/");
+        config.setProperty("server.shards", String.valueOf(shards));
+        config.setProperty("server.durability", durability.name());
+        config.setProperty("server.replication.port", "0");
+        config.setProperty("server.metrics.port", "0");
+        Path configFile = dir.resolve("system.properties");
+        try (OutputStream out = Files.newOutputStream(configFile)) {
+            config.store(out, "LoopbackBenchmark");
+        }
+
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[]{ configFile.toString() });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "bitcask-server");
+        server.setDaemon(true);
+        server.start();
+
+        // Up once it accepts, then every key gets a value so reads hit
+        Client loader = null;
+        for (int attempt = 0; loader == null; attempt++) {
+            try {
+                loader = new Client();
+                loader.setup(this);
+            } catch (IOException e) {
+                loader = null;
+                if (attempt == 100) throw e;
+                Thread.sleep(100);
+            }
+        }
+        int batch = 1000;
+        ByteBuffer entries = ByteBuffer.allocate(batch * (Long.BYTES + Integer.BYTES + loader.value.length));
+        for (int start = 0; start < keyCount; start += batch) {
+            entries.clear();
+            for (int key = start; key < Math.min(start + batch, keyCount); key++) {
+                entries.putLong(key).putInt(loader.value.length).put(loader.value);
+            }
+            byte[] payload = new byte[entries.position()];
+            entries.flip().get(payload);
+            if (loader.call(BinaryProtocol.MPUT, 0, payload) != BinaryProtocol.OK) {
+                throw new IOException("Loading the keys failed");
+            }
+        }
+        loader.tearDown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // The server runs until the fork exits, only its data goes
+        Engines.delete(dir);
+    }
+
+    @Benchmark
+    public byte put(Client client) throws IOException {
+        return client.call(BinaryProtocol.PUT, client.nextKey(), client.value);
+    }
+
+    @Benchmark
+    public byte get(Client client) throws IOException {
+        return client.call(BinaryProtocol.GET, client.nextKey(), null);
+    }
+}
@@ -0,0 +1,147 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Request decoding and reply encoding of both wire formats, without a socket or an engine.
+//
+// Decoding runs on a connection whose executor drops the tasks it gets, so what is measured is
+// framing, tokenizing, number parsing and handing the request off. Only read requests are decoded,
+// a write would go to the appender; the loopback benchmark covers those.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final int REQUESTS = 1024;
+
+    @Param({"128", "1024"})
+    int valueSize;
+
+    private Connection connection;
+    private ByteBuffer textGets;
+    private ByteBuffer textMultiGets;
+    private ByteBuffer textScans;
+    private ByteBuffer binaryGets;
+    private ByteBuffer binaryMultiGets;
+    private ByteBuffer out;
+    private byte[] value;
+    private List<Worker.KeyValue> scanResult;
+
+    // Accepts every task and never runs it
+    private static final class Discard extends AbstractExecutorService {
+        @Override public void execute(Runnable command) {}
+        @Override public void shutdown() {}
+        @Override public List<Runnable> shutdownNow() { return List.of(); }
+        @Override public boolean isShutdown() { return false; }
+        @Override public boolean isTerminated() { return false; }
+        @Override public boolean awaitTermination(long timeout, TimeUnit unit) { return false; }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        EventLoop loop = new EventLoop("bench", new Discard(), Integer.MAX_VALUE, () -> {});
+        connection = new Connection(loop, null, null);
+
+        StringBuilder gets = new StringBuilder();
+        StringBuilder multiGets = new StringBuilder();
+        StringBuilder scans = new StringBuilder();
+        binaryGets = ByteBuffer.allocate(REQUESTS * BinaryProtocol.REQUEST_HEADER_SIZE);
+        binaryMultiGets = ByteBuffer.allocate(REQUESTS * (BinaryProtocol.REQUEST_HEADER_SIZE + 16 * Long.BYTES));
+        for (int i = 0; i < REQUESTS; i++) {
+            long key = 1_000_000L + i * 7919L;
+            gets.append("r ").append(key).append(" --no-reply\n");
+            multiGets.append("mr");
+            for (int k = 0; k < 16; k++) multiGets.append(' ').append(key + k);
+            multiGets.append(" --no-reply\n");
+            scans.append("s ").append(key).append(' ').append(key + 100).append(" 50 --no-reply\n");
+
+            putRequest(binaryGets, BinaryProtocol.GET, i, key, 0);
+            putRequest(binaryMultiGets, BinaryProtocol.MGET, i, 0, 16 * Long.BYTES);
+            for (int k = 0; k < 16; k++) binaryMultiGets.putLong(key + k);
+        }
+        textGets = ByteBuffer.wrap(gets.toString().getBytes(StandardCharsets.US_ASCII));
+        textMultiGets = ByteBuffer.wrap(multiGets.toString().getBytes(StandardCharsets.US_ASCII));
+        textScans = ByteBuffer.wrap(scans.toString().getBytes(StandardCharsets.US_ASCII));
+        binaryGets.flip();
+        binaryMultiGets.flip();
+
+        value = Engines.value(valueSize, 3);
+        scanResult = new ArrayList<>();
+        for (int i = 0; i < 50; i++) scanResult.add(new Worker.KeyValue(i, value));
+        out = ByteBuffer.allocateDirect(64 * 1024 + 50 * (valueSize + 32));
+    }
+
+    private static void putRequest(ByteBuffer buffer, byte opcode, int requestId, long key, int valueLength) {
+        buffer.put(BinaryProtocol.MAGIC).put(opcode).put(BinaryProtocol.NO_REPLY)
+                .putInt(requestId).putLong(key).putInt(valueLength);
+    }
+
+    // Decodes the next request of the buffer, starts over at the end of it.
+    private boolean decode(Codec codec, ByteBuffer requests) throws IOException {
+        if (!requests.hasRemaining()) requests.rewind();
+        return codec.decode(connection, requests);
+    }
+
+    @Benchmark
+    public boolean textGet() throws IOException {
+        return decode(TextProtocol.INSTANCE, textGets);
+    }
+
+    @Benchmark
+    public boolean textMultiGet() throws IOException {
+        return decode(TextProtocol.INSTANCE, textMultiGets);
+    }
+
+    @Benchmark
+    public boolean textScan() throws IOException {
+        return decode(TextProtocol.INSTANCE, textScans);
+    }
+
+    @Benchmark
+    public boolean binaryGet() throws IOException {
+        return decode(BinaryProtocol.INSTANCE, binaryGets);
+    }
+
+    @Benchmark
+    public boolean binaryMultiGet() throws IOException {
+        return decode(BinaryProtocol.INSTANCE, binaryMultiGets);
+    }
+
+    @Benchmark
+    public ByteBuffer textEncodeValue() {
+        return encode(TextProtocol.INSTANCE, BinaryProtocol.GET, value);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncodeValue() {
+        return encode(BinaryProtocol.INSTANCE, BinaryProtocol.GET, value);
+    }
+
+    @Benchmark
+    public ByteBuffer textEncodeScan() {
+        return encode(TextProtocol.INSTANCE, BinaryProtocol.SCAN, scanResult);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncodeScan() {
+        return encode(BinaryProtocol.INSTANCE, BinaryProtocol.SCAN, scanResult);
+    }
+
+    private ByteBuffer encode(Codec codec, byte opcode, Object result) {
+        out.clear();
+        if (codec.encodedSize(opcode, BinaryProtocol.OK, result) <= out.remaining()) {
+            codec.encode(out, 1, opcode, BinaryProtocol.OK, result);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,82 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Point reads straight on one engine: keydir lookup, value cache, positional read of the segment.
+// With cacheBytes=0 every read goes to the segment (the page cache, after the fill).
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+    @Param({"128", "1024", "8192"})
+    int valueSize;
+
+    @Param({"10000", "100000"})
+    int keyCount;
+
+    @Param({"0", "67108864"})
+    long cacheBytes;
+
+    private Path dir;
+    private Worker engine;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final int KEYS = 1 << 16;
+        long[] keys;
+        int next;
+
+        @Setup
+        public void setup(ReadBenchmark benchmark) {
+            keys = Engines.keys(benchmark.keyCount, KEYS, Thread.currentThread().threadId());
+        }
+
+        long nextKey() {
+            return keys[next++ & (KEYS - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Engines.tempDir();
+        engine = Engines.open(dir, Engines.SEGMENT_SIZE, Durability.NONE, cacheBytes);
+        Engines.fill(engine, keyCount, valueSize, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Engines.close(engine);
+        Engines.delete(dir);
+    }
+
+    @Benchmark
+    public byte[] get(Cursor cursor) {
+        return engine.get(cursor.nextKey());
+    }
+
+    // A multi-get of 16 keys, read in file order in one pass
+    @Benchmark
+    public void getAll(Cursor cursor, Blackhole blackhole) {
+        long[] keys = new long[16];
+        List<CompletableFuture<byte[]>> results = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = cursor.nextKey();
+            results.add(new CompletableFuture<>());
+        }
+        engine.getAll(keys, results);
+        for (CompletableFuture<byte[]> result : results) {
+            blackhole.consume(result.join());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Startup of an engine over an existing store: the keydir is rebuilt from the hint files, or by
+// scanning every segment with hints=false. Each invocation opens the same store again.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecoveryBenchmark {
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    @Param({"100000", "1000000"})
+    int keyCount;
+
+    @Param({"128"})
+    int valueSize;
+
+    @Param({"true", "false"})
+    boolean hints;
+
+    private Path dir;
+    private File logs;
+    private File hintFolder;
+    // The files of the store itself, anything else was left by the previous invocation
+    private Set<String> segmentNames;
+    private Worker engine;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Engines.tempDir();
+        Worker writer = Engines.open(dir, SEGMENT_SIZE, Durability.NONE, 0);
+        Engines.fill(writer, keyCount, valueSize, 2);
+        Engines.close(writer);
+        logs = dir.resolve("logs").toFile();
+        hintFolder = dir.resolve("hints").toFile();
+        segmentNames = new HashSet<>();
+        for (File segment : Worker.getFilesFromFolder(logs.getPath())) {
+            segmentNames.add(segment.getName());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws IOException {
+        for (File hint : Worker.getFilesFromFolder(hintFolder.getPath())) {
+            if (!hints || !segmentNames.contains(hint.getName())) {
+                Files.delete(hint.toPath());
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeEngine() throws IOException {
+        Engines.close(engine);
+        // The empty active segment the engine opened
+        for (File segment : Worker.getFilesFromFolder(logs.getPath())) {
+            if (!segmentNames.contains(segment.getName())) {
+                Files.delete(segment.toPath());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Engines.delete(dir);
+    }
+
+    @Benchmark
+    public Worker open() throws IOException {
+        engine = Engines.open(dir, SEGMENT_SIZE, Durability.NONE, 0);
+        return engine;
+    }
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Point writes straight on one engine, no network or protocol in between.
+//
+// A put returns once the appender synced it, so with durability GROUP every single threaded put pays
+// an fsync. Run with -t to see concurrent writers share it.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+    @Param({"128", "1024", "8192"})
+    int valueSize;
+
+    @Param({"10000", "1000000"})
+    int keyCount;
+
+    @Param({"NONE", "GROUP"})
+    Durability durability;
+
+    private Path dir;
+    private Worker engine;
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final int KEYS = 1 << 16;
+        long[] keys;
+        int next;
+
+        @Setup
+        public void setup(WriteBenchmark benchmark) {
+            keys = Engines.keys(benchmark.keyCount, KEYS, Thread.currentThread().threadId());
+        }
+
+        long nextKey() {
+            return keys[next++ & (KEYS - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Engines.tempDir();
+        engine = Engines.open(dir, Engines.SEGMENT_SIZE, durability, 0);
+        value = Engines.value(valueSize, 7);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Engines.close(engine);
+        Engines.delete(dir);
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) {
+        engine.put(cursor.nextKey(), value).join();
+    }
+}
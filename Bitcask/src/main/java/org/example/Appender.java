@@ -0,0 +1,218 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The only thread that appends to the active segment. Request threads hand their writes over
+// and wait for the returned future, the appender applies them in arrival order in batches:
+// every record of a batch is appended, the batch is synced according to the durability mode,
+// and only then are the keys published in the keydir and the writers acknowledged.
+// The queue of waiting requests is bounded: once it is full, writes fail right away instead of
+// piling up on the heap faster than the disk takes them. Replicated records wait for room instead.
+public class Appender implements Runnable {
+    // Filled in by Worker.writeRequest with where the record landed.
+    static final class PendingWrite {
+        final long key;
+        final byte[] value;
+        final boolean tombstone;
+        int fileId;
+        int offset;
+        int size;
+        long timestamp;
+
+        PendingWrite(long key, byte[] value, boolean tombstone) {
+            this.key = key;
+            this.value = value;
+            this.tombstone = tombstone;
+        }
+
+        // A record replicated from the leader
+        PendingWrite(long key, byte[] value, boolean tombstone, long timestamp) {
+            this(key, value, tombstone);
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Writes that are always applied in the same batch, so they share one sync and one acknowledgement.
+    private static final class Group {
+        final PendingWrite[] writes;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Group(PendingWrite... writes) {
+            this.writes = writes;
+        }
+    }
+
+    private final Worker engine;
+    private final int maxBatchSize;
+    private final Durability durability;
+    private final long groupWindowNanos;
+    private final long intervalMs;
+    private final BlockingQueue<Group> queue;
+    private final int maxQueued;
+    private final Thread thread;
+    private ScheduledExecutorService flusher;
+
+    // Metrics
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public Appender(Worker engine, int maxBatchSize, int maxQueued, Durability durability, long groupWindowMicros,
+                    long intervalMs) {
+        this.engine = engine;
+        this.maxBatchSize = maxBatchSize;
+        this.durability = durability;
+        this.groupWindowNanos = TimeUnit.MICROSECONDS.toNanos(groupWindowMicros);
+        this.intervalMs = intervalMs;
+        this.maxQueued = maxQueued;
+        this.queue = new LinkedBlockingQueue<>(maxQueued);
+        this.thread = new Thread(this, "bitcask-appender-" + engine.shard);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        if (durability == Durability.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread flusherThread = new Thread(r, "bitcask-fsync-" + engine.shard);
+                flusherThread.setDaemon(true);
+                return flusherThread;
+            });
+            flusher.scheduleAtFixedRate(engine::forceActiveSegment, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        thread.interrupt();
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+    }
+
+    public CompletableFuture<Void> append(long key, byte[] value) {
+        return submit(new Group(new PendingWrite(key, value, false)));
+    }
+
+    public CompletableFuture<Void> appendAll(long[] keys, byte[][] values) {
+        PendingWrite[] writes = new PendingWrite[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            writes[i] = new PendingWrite(keys[i], values[i], false);
+        }
+        return submit(new Group(writes));
+    }
+
+    public CompletableFuture<Void> delete(long key) {
+        return submit(new Group(new PendingWrite(key, new byte[0], true)));
+    }
+
+    // Follower only, the leader's records in log order as one group.
+    // Blocks while the queue is full, the follower just reads the leader's stream more slowly.
+    public CompletableFuture<Void> replicate(PendingWrite[] writes) {
+        Group group = new Group(writes);
+        try {
+            queue.put(group);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        return group.done;
+    }
+
+    private CompletableFuture<Void> submit(Group group) {
+        if (!queue.offer(group)) {
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalStateException("Shard " + engine.shard + " has "
+                    + maxQueued + " writes waiting for the disk, try again later"));
+        }
+        return group.done;
+    }
+
+    // maxBatchSize counts requests, a multi-put is never split over two batches.
+    private void collect(List<Group> batch) throws InterruptedException {
+        batch.add(queue.take());
+        if (durability == Durability.GROUP && groupWindowNanos > 0) {
+            // Give concurrent writers a chance to share the force with us.
+            long deadline = System.nanoTime() + groupWindowNanos;
+            while (batch.size() < maxBatchSize) {
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long remaining = deadline - System.nanoTime();
+                if (batch.size() >= maxBatchSize || remaining <= 0) break;
+                Group next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) break;
+                batch.add(next);
+            }
+        } else {
+            queue.drainTo(batch, maxBatchSize - 1);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Group> batch = new ArrayList<>(maxBatchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                collect(batch);
+                try {
+                    write(batch);
+                    batches.incrementAndGet();
+                    for (Group group : batch) {
+                        for (PendingWrite write : group.writes) {
+                            engine.publish(write);
+                        }
+                        records.addAndGet(group.writes.length);
+                        group.done.complete(null);
+                    }
+                    engine.markPublished();
+                    engine.notifyAppended();
+                } catch (IOException | RuntimeException e) {
+                    for (Group group : batch) {
+                        group.done.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Appends and syncs the batch. If that fails, whatever of it got written is taken back first.
+    private void write(List<Group> batch) throws IOException {
+        engine.checkIntact();
+        engine.beginBatch();
+        try {
+            for (Group group : batch) {
+                for (PendingWrite write : group.writes) {
+                    engine.writeRequest(write);
+                }
+            }
+            engine.sync();
+        } catch (IOException | RuntimeException e) {
+            engine.rollbackBatch();
+            throw e;
+        }
+    }
+
+    // Synced batches, one sync each
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    // Writes failed because the queue was full
+    public long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,161 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Binary, length-prefixed protocol served on the same port as the text one. A connection is
+// binary if its first byte is MAGIC, text commands always start with a letter.
+//
+// Request:  [byte magic][byte opcode][byte flags][int requestId][long key][int valueLength][value]
+// Response: [byte magic][byte status][int requestId][int valueLength][value]
+//
+// Values are raw bytes, so they can hold anything including newlines. Frames are decoded in place
+// from the connection's read buffer, only the value of a PUT is copied out for the appender.
+// Replies come back in request order and carry the request id so the client can match them.
+//
+// Batch requests:
+//   MGET  value = the keys, 8 bytes each. One response per key, in request order.
+//   MPUT  value = [long key][int length][bytes] per entry. One response once all of them are synced.
+//   SCAN  key = first key, value = [long last key][int limit]. One response per entry found, its
+//         value is [long key][bytes], followed by a response with status END.
+//   EXPORT key = 0 for CSV, 1 for the binary export format (see Export). The snapshot comes back as
+//         a run of responses holding the next chunk, followed by a response with status END.
+final class BinaryProtocol implements Codec {
+    static final BinaryProtocol INSTANCE = new BinaryProtocol();
+
+    static final byte MAGIC = (byte) 0xB1;
+
+    static final byte PUT = 1;
+    static final byte GET = 2;
+    static final byte DELETE = 3;
+    static final byte MGET = 4;
+    static final byte MPUT = 5;
+    static final byte SCAN = 6;
+    static final byte EXPORT = 7;
+
+    static final byte NO_REPLY = 1;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte ERROR = 2;
+    static final byte END = 3;
+
+    static final int REQUEST_HEADER_SIZE = 19;
+    static final int RESPONSE_HEADER_SIZE = 10;
+
+    private BinaryProtocol() {}
+
+    @Override
+    public boolean decode(Connection connection, ByteBuffer in) throws IOException {
+        if (in.remaining() < REQUEST_HEADER_SIZE) return false;
+        int start = in.position();
+        byte magic = in.get(start);
+        byte opcode = in.get(start + 1);
+        byte flags = in.get(start + 2);
+        int requestId = in.getInt(start + 3);
+        long key = in.getLong(start + 7);
+        int valueLength = in.getInt(start + 15);
+        if (magic != MAGIC || valueLength < 0) {
+            throw new IOException("Malformed binary frame");
+        }
+        long frameLength = (long) REQUEST_HEADER_SIZE + valueLength;
+        if (in.remaining() < frameLength) {
+            connection.expect(frameLength);
+            return false;
+        }
+
+        boolean expectsReply = (flags & NO_REPLY) == 0;
+        int value = start + REQUEST_HEADER_SIZE;
+        switch (opcode) {
+            case PUT -> {
+                byte[] bytes = new byte[valueLength];
+                in.get(value, bytes);
+                connection.write(Shards.put(key, bytes), requestId, opcode, expectsReply);
+            }
+            case GET -> connection.submit(connection.read(key), requestId, opcode, expectsReply);
+            case DELETE -> connection.write(Shards.delete(key), requestId, opcode, expectsReply);
+            case MGET -> {
+                if (valueLength % Long.BYTES != 0) throw new IOException("Malformed binary frame");
+                // Left in the buffer until the pipeline has room for all of its replies
+                if (!connection.hasRoom(valueLength / Long.BYTES)) return false;
+                long[] keys = new long[valueLength / Long.BYTES];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = in.getLong(value + i * Long.BYTES);
+                }
+                connection.readAll(keys, requestId, opcode, expectsReply);
+            }
+            case MPUT -> {
+                // Every entry has to lie within the frame before anything is copied out
+                int end = value + valueLength;
+                int count = 0;
+                for (int p = value; p < end; count++) {
+                    if (end - p < Long.BYTES + Integer.BYTES) throw new IOException("Malformed binary frame");
+                    int length = in.getInt(p + Long.BYTES);
+                    if (length < 0 || length > end - p - Long.BYTES - Integer.BYTES) {
+                        throw new IOException("Malformed binary frame");
+                    }
+                    p += Long.BYTES + Integer.BYTES + length;
+                }
+                long[] keys = new long[count];
+                byte[][] values = new byte[count][];
+                for (int i = 0, p = value; i < count; i++) {
+                    keys[i] = in.getLong(p);
+                    values[i] = new byte[in.getInt(p + Long.BYTES)];
+                    in.get(p + Long.BYTES + Integer.BYTES, values[i]);
+                    p += Long.BYTES + Integer.BYTES + values[i].length;
+                }
+                connection.write(Shards.putAll(keys, values), requestId, opcode, expectsReply);
+            }
+            case SCAN -> {
+                if (valueLength != Long.BYTES + Integer.BYTES) throw new IOException("Malformed binary frame");
+                connection.submit(connection.scan(key, in.getLong(value), in.getInt(value + Long.BYTES)),
+                        requestId, opcode, expectsReply);
+            }
+            case EXPORT -> connection.submit(connection.export(key == 1 ? Export.Format.BINARY : Export.Format.CSV),
+                    requestId, opcode, expectsReply);
+            default -> throw new IOException("Unknown opcode " + opcode);
+        }
+        in.position(start + REQUEST_HEADER_SIZE + valueLength);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int encodedSize(byte opcode, byte status, Object result) {
+        if (opcode == SCAN && result != null) {
+            int size = RESPONSE_HEADER_SIZE;
+            for (Worker.KeyValue entry : (List<Worker.KeyValue>) result) {
+                size += RESPONSE_HEADER_SIZE + Long.BYTES + entry.value().length;
+            }
+            return size;
+        }
+        return RESPONSE_HEADER_SIZE + (result != null ? ((byte[]) result).length : 0);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void encode(ByteBuffer out, int requestId, byte opcode, byte status, Object result) {
+        if (opcode == SCAN && result != null) {
+            for (Worker.KeyValue entry : (List<Worker.KeyValue>) result) {
+                putHeader(out, OK, requestId, Long.BYTES + entry.value().length);
+                out.putLong(entry.key());
+                out.put(entry.value());
+            }
+            putHeader(out, END, requestId, 0);
+            return;
+        }
+        byte[] value = (byte[]) result;
+        putHeader(out, status, requestId, value != null ? value.length : 0);
+        if (value != null) {
+            out.put(value);
+        }
+    }
+
+    private static void putHeader(ByteBuffer out, byte status, int requestId, int valueLength) {
+        out.put(MAGIC);
+        out.put(status);
+        out.putInt(requestId);
+        out.putInt(valueLength);
+    }
+}
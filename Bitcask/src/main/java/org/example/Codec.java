@@ -0,0 +1,16 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Wire format of a connection, picked from its first byte.
+interface Codec {
+    // Decodes the request at the buffer position and hands it to the connection,
+    // returns false if it didn't fully arrive yet.
+    boolean decode(Connection connection, ByteBuffer in) throws IOException;
+
+    // result is a byte[] value, or the List<Worker.KeyValue> of a scan.
+    int encodedSize(byte opcode, byte status, Object result);
+
+    void encode(ByteBuffer out, int requestId, byte opcode, byte status, Object result);
+}
@@ -0,0 +1,61 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+
+// Text commands that act on the whole store rather than on one key, run on the executor.
+public class Command implements Callable<byte[]> {
+    private final String request;
+
+    public Command(String request) {
+        this.request = request;
+    }
+
+    // Writes a snapshot of the store into path/fileName on the server, replies the number of entries.
+    private byte[] exportToFile(String path, String fileName){
+        try (FileChannel out = FileChannel.open(Paths.get(path, fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long count = Export.snapshot(Export.formatOf(fileName)).writeTo(chunk -> {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while(buffer.hasRemaining()){
+                    out.write(buffer);
+                }
+            });
+            return Long.toString(count).getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] call(){
+        char req = request.charAt(0);
+        String[] requestParts;
+        switch (req){
+            // COMPACTION REQUEST
+            case 'c':
+                Shards.compact();
+                break;
+
+            // CACHE STATISTICS
+            case 'i':
+                return Shards.cacheStats().getBytes(StandardCharsets.UTF_8);
+
+            // METRICS IN THE PROMETHEUS TEXT FORMAT, ENDS WITH AN EMPTY LINE
+            case 's':
+                return Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+
+            // EXPORT ALL KEYS AND VALUES TO A FILE ON THE SERVER, CSV OR .bin
+            case 'x':
+                requestParts = request.split(" ",3);
+                return exportToFile(requestParts[1], requestParts[2]);
+        }
+        return null;
+    }
+}
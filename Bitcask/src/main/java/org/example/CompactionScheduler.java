@@ -0,0 +1,110 @@
+package org.example;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Decides when a compaction pays for itself, instead of firing whenever the log folder holds N files.
+//
+// A sealed segment is a candidate when its garbage ratio reaches minGarbageRatio, or when it is
+// small (below smallSegmentRatio of a full segment), i.e. the log is fragmented. Adjacent candidates
+// are grouped into windows of at most maxBatchBytes, see Compactor for why they must be adjacent.
+// A window is merged if it reclaims at least minReclaimBytes or folds several small files into fewer.
+public class CompactionScheduler implements Runnable {
+    private final Worker engine;
+    private final Compactor compactor;
+    private final String logPath;
+    private final long pollingIntervalMs;
+    private final double minGarbageRatio;
+    private final double smallSegmentRatio;
+    private final long minReclaimBytes;
+    private final long maxBatchBytes;
+    private final ScheduledExecutorService executor;
+
+    public CompactionScheduler(Worker engine, long pollingIntervalMs, double minGarbageRatio,
+                               double smallSegmentRatio, long minReclaimBytes, long maxBatchBytes) {
+        this.engine = engine;
+        this.compactor = engine.compactor;
+        this.logPath = engine.filePath;
+        this.pollingIntervalMs = pollingIntervalMs;
+        this.minGarbageRatio = minGarbageRatio;
+        this.smallSegmentRatio = smallSegmentRatio;
+        this.minReclaimBytes = minReclaimBytes;
+        this.maxBatchBytes = maxBatchBytes;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bitcask-compaction-" + engine.shard);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        // Fixed delay: the next evaluation only starts once the previous merges are done,
+        // so a slow merge can never pile up runs behind it.
+        executor.scheduleWithFixedDelay(this, pollingIntervalMs, pollingIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (List<Integer> window : pickWindows()) {
+                compactor.merge(window);
+            }
+        } catch (Exception e) {
+            // Never let an exception cancel the periodic task
+            e.printStackTrace();
+        }
+    }
+
+    List<List<Integer>> pickWindows() {
+        // A segment rotated by a batch that isn't published yet holds records the keydir doesn't know
+        int publishedFileId = engine.publishedFileId;
+        long smallSegment = (long) (engine.segmentSize * smallSegmentRatio);
+        Map<Integer, SegmentUsage.Usage> usage = engine.usage.snapshot();
+
+        List<List<Integer>> windows = new ArrayList<>();
+        List<Integer> window = new ArrayList<>();
+        long windowBytes = 0;
+        long windowDead = 0;
+        int windowSmall = 0;
+
+        File[] files = Worker.getFilesFromFolder(logPath);
+        if (files == null) return windows;
+        for (File file : files) {
+            int id = Integer.parseInt(file.getName());
+            if (id >= publishedFileId) break;
+
+            SegmentUsage.Usage u = usage.get(id);
+            long size = file.length();
+            long dead = u != null ? u.getDead() : 0;
+            boolean garbage = u != null && u.getGarbageRatio() >= minGarbageRatio;
+            boolean small = size < smallSegment;
+
+            if (!(garbage || small) || (!window.isEmpty() && windowBytes + size > maxBatchBytes)) {
+                if (worthMerging(window, windowDead, windowSmall)) windows.add(window);
+                window = new ArrayList<>();
+                windowBytes = windowDead = windowSmall = 0;
+                if (!(garbage || small)) continue;
+            }
+            window.add(id);
+            windowBytes += size;
+            windowDead += dead;
+            if (small) windowSmall++;
+        }
+        if (worthMerging(window, windowDead, windowSmall)) windows.add(window);
+        return windows;
+    }
+
+    private boolean worthMerging(List<Integer> window, long dead, int small) {
+        if (window.isEmpty()) return false;
+        return dead >= minReclaimBytes || small >= 2;
+    }
+}
@@ -0,0 +1,495 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Merges sealed segments in the background, one bounded batch at a time.
+//
+// A batch is a run of adjacent sealed segments. Live records are streamed into new files next to
+// the old ones ("<id>.compact"), then the new files take over the highest ids of the batch and the
+// rest of the batch is deleted. Because every key in the output is the newest one of the batch and
+// nothing else lives between the batch ids, replaying hint files in id order stays correct.
+//
+// A tombstone has to be copied as long as an older segment may still hold a record of its key.
+// It is dropped once the key got written again, or when the batch starts at the oldest segment.
+// Every record is checked against its CRC, a corrupt one aborts the merge instead of being copied.
+//
+// Neither the merge nor the keydir update blocks the appender or the readers, the rotation lock is
+// only taken to delete the files being replaced, see swap.
+public class Compactor {
+    static final String TMP_SUFFIX = ".compact";
+    static final String MANIFEST = "merge.manifest";
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+    private record Relocation(long key, int oldFileId, int oldOffset, int newFileId, int newOffset, int size, long timestamp) {}
+
+    private final Worker engine;
+    private final String filePath;
+    private final String hintPath;
+    private final long maxBatchBytes;
+    private final IoThrottle throttle;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    // Set while a replication source streams sealed segments, see pause()
+    private final AtomicInteger pauses = new AtomicInteger();
+
+    // Metrics
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+
+    // The throttle may be shared with the compactors of the other shards, they all hit the same disk.
+    public Compactor(Worker engine, long maxBatchBytes, IoThrottle throttle) {
+        this.engine = engine;
+        this.filePath = engine.filePath;
+        this.hintPath = engine.hintPath;
+        this.maxBatchBytes = maxBatchBytes;
+        this.throttle = throttle;
+    }
+
+    // Finishes a swap that was interrupted by a crash and drops half written merge files.
+    // Has to run before the keydir is loaded from the hint files.
+    public void recover() throws IOException {
+        Path manifest = Paths.get(filePath + MANIFEST);
+        if (Files.exists(manifest)) {
+            System.out.println("Finishing interrupted compaction...");
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                if (parts[0].equals("rename")) {
+                    Path source = Paths.get(parts[1]);
+                    if (Files.exists(source)) {
+                        Files.move(source, Paths.get(parts[2]), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } else if (parts[0].equals("delete")) {
+                    Files.deleteIfExists(Paths.get(parts[1]));
+                }
+            }
+            Files.delete(manifest);
+        }
+        deleteTemporaryFiles(filePath);
+        deleteTemporaryFiles(hintPath);
+    }
+
+    private void deleteTemporaryFiles(String path) throws IOException {
+        // Staged outputs of a swap that didn't get as far as its manifest, the batch is still whole
+        File[] files = new File(path).listFiles((dir, name) -> name.endsWith(TMP_SUFFIX) || name.equals(MANIFEST + TMP_SUFFIX)
+                || name.startsWith("-"));
+        if (files == null) return;
+        for (File file : files) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    // Merges one window of adjacent sealed segments picked by the CompactionScheduler.
+    // Returns false without doing anything if another merge is in progress, or if the window reaches
+    // past the published segments.
+    public boolean merge(List<Integer> batch) {
+        if (batch.isEmpty() || batch.get(batch.size() - 1) >= engine.publishedFileId) {
+            return false;
+        }
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        if (pauses.get() > 0) {
+            running.set(false);
+            return false;
+        }
+        try {
+            mergeBatch(batch);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // Runs one compaction over all the sealed segments, returns immediately if one is already in progress.
+    public void compact() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        if (pauses.get() > 0) {
+            running.set(false);
+            return;
+        }
+        try {
+            // Everything below it is on disk and in the keydir, see Worker.publishedFileId.
+            int publishedFileId = engine.publishedFileId;
+            List<Integer> sealed = new ArrayList<>();
+            List<Long> sizes = new ArrayList<>();
+            File[] files = Worker.getFilesFromFolder(filePath);
+            if (files == null) return;
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName());
+                if (id < publishedFileId) {
+                    sealed.add(id);
+                    sizes.add(file.length());
+                }
+            }
+
+            int start = 0;
+            while (start < sealed.size()) {
+                int end = start;
+                long batchBytes = 0;
+                while (end < sealed.size() && (end == start || batchBytes + sizes.get(end) <= maxBatchBytes)) {
+                    batchBytes += sizes.get(end);
+                    end++;
+                }
+                mergeBatch(sealed.subList(start, end));
+                start = end;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // Keeps sealed segments as they are until resume(): a follower catching up reads them by offset.
+    // Waits for a merge in progress to finish.
+    public void pause() {
+        pauses.incrementAndGet();
+        while (running.get()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void resume() {
+        pauses.decrementAndGet();
+    }
+
+    // One output segment being built as "<id>.compact", data and hints are streamed through reusable buffers.
+    private final class Output {
+        final int id;
+        final FileChannel data;
+        final FileChannel hint;
+        final ByteBuffer dataBuffer;
+        final ByteBuffer hintBuffer;
+        long size;
+
+        Output(int id, ByteBuffer dataBuffer, ByteBuffer hintBuffer) throws IOException {
+            this.id = id;
+            this.dataBuffer = dataBuffer;
+            this.hintBuffer = hintBuffer;
+            this.data = FileChannel.open(Paths.get(filePath + id + TMP_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.hint = FileChannel.open(Paths.get(hintPath + id + TMP_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        // Appends the record (position to limit of the given buffer) and returns its offset.
+        int append(ByteBuffer record, long key, long timestamp, boolean tombstone) throws IOException {
+            int offset = (int) size;
+            int recordSize = record.remaining();
+            if (recordSize > dataBuffer.remaining()) {
+                drain(data, dataBuffer);
+            }
+            if (recordSize > dataBuffer.remaining()) {
+                // Bigger than the whole buffer, write it straight through.
+                throttle.acquire(recordSize);
+                while (record.hasRemaining()) {
+                    data.write(record);
+                }
+            } else {
+                dataBuffer.put(record);
+            }
+            if (hintBuffer.remaining() < Worker.hintEntrySize) {
+                drain(hint, hintBuffer);
+            }
+            hintBuffer.putLong(key);
+            hintBuffer.putInt(offset);
+            hintBuffer.putInt(tombstone ? -recordSize : recordSize);
+            hintBuffer.putLong(timestamp);
+            size += recordSize;
+            return offset;
+        }
+
+        void finish() throws IOException {
+            drain(data, dataBuffer);
+            drain(hint, hintBuffer);
+            data.force(true);
+            hint.force(true);
+            close();
+        }
+
+        void close() throws IOException {
+            dataBuffer.clear();
+            hintBuffer.clear();
+            data.close();
+            hint.close();
+        }
+
+        private void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            throttle.acquire(buffer.remaining());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private void mergeBatch(List<Integer> batch) throws IOException {
+        long startedAt = System.nanoTime();
+        List<Relocation> relocations = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        HashMap<Integer, Long> tombstones = new HashMap<>();
+        KeyDir.Entry entry = new KeyDir.Entry();
+        long read = 0;
+        long written = 0;
+
+        ByteBuffer in = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        ByteBuffer dataBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        ByteBuffer hintBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE / Worker.hintEntrySize * Worker.hintEntrySize);
+        Output output = null;
+
+        File[] files = Worker.getFilesFromFolder(filePath);
+        boolean dropTombstones = files != null && files.length > 0 && Integer.parseInt(files[0].getName()) == batch.get(0);
+
+        try {
+            for (int fileId : batch) {
+                try (FileChannel channel = FileChannel.open(Paths.get(filePath + fileId), StandardOpenOption.READ)) {
+                    in.clear();
+                    long position = 0;
+                    int n;
+                    while ((n = channel.read(in)) > 0 || in.position() > 0) {
+                        throttle.acquire(n);
+                        in.flip();
+                        while (in.remaining() >= Record.HEADER_SIZE) {
+                            int start = in.position();
+                            int recordSize = Record.sizeAt(in, start);
+                            if (recordSize < 0) {
+                                throw new IOException("Corrupt record header in segment " + fileId + " at offset " + position);
+                            }
+                            if (in.remaining() < recordSize) {
+                                if (recordSize > in.capacity()) {
+                                    in = grow(in, recordSize);
+                                }
+                                break;
+                            }
+                            if (!Record.isIntact(in, start, recordSize)) {
+                                throw new IOException("Corrupt record in segment " + fileId + " at offset " + position);
+                            }
+                            long key = Record.keyAt(in, start);
+                            int offset = (int) position;
+                            boolean tombstone = Record.isTombstone(in, start);
+
+                            // Only the record the keydir points to is live, everything else is garbage.
+                            boolean live = tombstone
+                                    ? !dropTombstones && !engine.inMemory.containsKey(key)
+                                    : engine.inMemory.get(key, entry) && entry.fileId == fileId && entry.offset == offset;
+                            if (live) {
+                                if (output == null || (output.size > 0 && output.size + recordSize > engine.segmentSize)) {
+                                    if (output != null) {
+                                        written += output.size;
+                                        output.finish();
+                                    }
+                                    output = new Output(outputId(batch, outputs), dataBuffer, hintBuffer);
+                                    outputs.add(output.id);
+                                }
+
+                                long timestamp = Record.timestampAt(in, start);
+                                int limit = in.limit();
+                                in.limit(start + recordSize);
+                                int newOffset = output.append(in, key, timestamp, tombstone);
+                                in.limit(limit);
+                                if (tombstone) {
+                                    tombstones.merge(output.id, (long) recordSize, Long::sum);
+                                } else {
+                                    relocations.add(new Relocation(key, fileId, offset, output.id, newOffset, recordSize, timestamp));
+                                }
+                            } else {
+                                in.position(in.position() + recordSize);
+                            }
+                            position += recordSize;
+                            read += recordSize;
+                        }
+                        in.compact();
+                        if (in.position() > 0 && channel.position() >= channel.size()) {
+                            throw new IOException("Truncated record at the end of segment " + fileId);
+                        }
+                    }
+                }
+            }
+            if (output != null) {
+                written += output.size;
+                output.finish();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {}
+            }
+            for (int id : outputs) {
+                Files.deleteIfExists(Paths.get(filePath + id + TMP_SUFFIX));
+                Files.deleteIfExists(Paths.get(hintPath + id + TMP_SUFFIX));
+            }
+            throw e;
+        }
+
+        swap(batch, outputs, relocations, tombstones);
+
+        long elapsed = System.nanoTime() - startedAt;
+        merges.incrementAndGet();
+        bytesRead.addAndGet(read);
+        bytesWritten.addAndGet(written);
+        reclaimedBytes.addAndGet(read - written);
+        mergeNanos.addAndGet(elapsed);
+        System.out.println("Compaction merged segments " + batch.get(0) + ".." + batch.get(batch.size() - 1)
+                + " into " + outputs.size() + " files, read " + read + " bytes, reclaimed " + (read - written)
+                + " bytes in " + (elapsed / 1_000_000) + " ms");
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        bigger.put(buffer);
+        bigger.flip();
+        return bigger;
+    }
+
+    // Output files take over the ids of the batch from the highest one down.
+    private static int outputId(List<Integer> batch, List<Integer> outputs) throws IOException {
+        if (outputs.size() == batch.size()) {
+            // Can only happen if the batch had (almost) no garbage and records pack worse than before.
+            throw new IOException("Compacted output does not fit in the ids of the batch, skipping it");
+        }
+        return batch.get(batch.size() - 1 - outputs.size());
+    }
+
+    // Output files are staged under a negative id of their own first, so relocating the keydir to
+    // them never makes a reader find a file that doesn't hold its record yet. The write lock is only
+    // taken to delete files readers may still be about to open:
+    //   1. rename "<id>.compact" to "<staged>", relocate the keys from the batch to the staged files
+    //   2. locked: delete the batch, hard link every staged file to the id it takes over
+    //   3. relocate the keys from the staged ids to the final ones, both names are the same file
+    //   4. locked: drop the staged names
+    // The manifest, written once the staged files exist, finishes a crash at any point the same way.
+    private void swap(List<Integer> batch, List<Integer> outputs, List<Relocation> relocations,
+                      HashMap<Integer, Long> tombstones) throws IOException {
+        for (int id : outputs) {
+            Files.move(Paths.get(filePath + id + TMP_SUFFIX), Paths.get(filePath + stagedId(id)), StandardCopyOption.ATOMIC_MOVE);
+        }
+        List<String> manifest = new ArrayList<>();
+        for (int id : outputs) {
+            // Renaming a file onto a link of itself does nothing, the staged name is deleted after it
+            manifest.add("rename " + filePath + stagedId(id) + " " + filePath + id);
+            manifest.add("delete " + filePath + stagedId(id));
+            manifest.add("rename " + hintPath + id + TMP_SUFFIX + " " + hintPath + id);
+        }
+        for (int id : batch) {
+            if (!outputs.contains(id)) {
+                manifest.add("delete " + filePath + id);
+                manifest.add("delete " + hintPath + id);
+            }
+        }
+        Path manifestPath = Paths.get(filePath + MANIFEST);
+        Path manifestTmp = Paths.get(filePath + MANIFEST + TMP_SUFFIX);
+        Files.write(manifestTmp, manifest, StandardCharsets.UTF_8);
+        Files.move(manifestTmp, manifestPath, StandardCopyOption.ATOMIC_MOVE);
+
+        HashMap<Integer, long[]> usage = new HashMap<>();
+        for (int id : outputs) {
+            // Kept tombstones count as live, see Worker.publish.
+            usage.put(id, new long[]{tombstones.getOrDefault(id, 0L), 0});
+        }
+        List<Relocation> moved = new ArrayList<>(relocations.size());
+        for (Relocation r : relocations) {
+            // Fails if the key was written again during the merge, the copy we made is garbage then.
+            boolean relocated = engine.inMemory.replaceIfAt(r.key(), r.oldFileId(), r.oldOffset(), stagedId(r.newFileId()), r.newOffset(), r.size(), r.timestamp());
+            usage.get(r.newFileId())[relocated ? 0 : 1] += r.size();
+            if (relocated) {
+                engine.cache.invalidate(r.key());
+                moved.add(r);
+            }
+        }
+
+        engine.lockWrite();
+        try {
+            for (int id : batch) {
+                Files.deleteIfExists(Paths.get(filePath + id));
+                engine.segments.evict(id);
+                engine.usage.remove(id);
+                if (outputs.contains(id)) {
+                    Files.createLink(Paths.get(filePath + id), Paths.get(filePath + stagedId(id)));
+                    Files.move(Paths.get(hintPath + id + TMP_SUFFIX), Paths.get(hintPath + id), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    engine.usage.set(id, usage.get(id)[0], usage.get(id)[1]);
+                } else {
+                    Files.deleteIfExists(Paths.get(hintPath + id));
+                }
+            }
+        } finally {
+            engine.lock.writeLock().unlock();
+        }
+
+        for (Relocation r : moved) {
+            engine.inMemory.replaceIfAt(r.key(), stagedId(r.newFileId()), r.newOffset(), r.newFileId(), r.newOffset(), r.size(), r.timestamp());
+        }
+
+        engine.lockWrite();
+        try {
+            for (int id : outputs) {
+                Files.delete(Paths.get(filePath + stagedId(id)));
+                engine.segments.evict(stagedId(id));
+                // Anything a put superseded in the staged file meanwhile, see SegmentUsage
+                engine.usage.remove(stagedId(id));
+            }
+        } finally {
+            engine.lock.writeLock().unlock();
+        }
+        Files.delete(manifestPath);
+    }
+
+    // Negative, so it can't be a segment: the folder listings only pick up names made of digits.
+    private static int stagedId(int id) {
+        return -1 - id;
+    }
+
+    public long getMerges() {
+        return merges.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    public long getMergeMillis() {
+        return mergeNanos.get() / 1_000_000;
+    }
+
+    // Merge throughput in MB/s over all merges so far.
+    public double getThroughputMBps() {
+        long nanos = mergeNanos.get();
+        return nanos == 0 ? 0 : bytesRead.get() / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,353 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// One client connection. Only its event loop thread touches it, except for inFlight which
+// completions on other threads count down for requests that don't expect a reply.
+//
+// Requests are pipelined: they are decoded and started as soon as their bytes arrive, and the replies
+// go out in request order as each one completes. Once pipelineDepth requests are in flight the loop
+// stops reading the socket, so a flooding client is slowed down by TCP instead of piling up requests.
+class Connection {
+    private record Reply(CompletableFuture<?> result, int requestId, byte opcode) {}
+
+    // Metrics counts every failed request. Many fail as expected, a lagging follower or an oversized
+    // request, so the log only gets the message of one per interval, for all connections.
+    private static final long ERROR_LOG_INTERVAL_MS = 1000;
+    private static final AtomicLong errorLoggedAt = new AtomicLong();
+    private static final AtomicLong errorsNotLogged = new AtomicLong();
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // in is kept ready for the next channel read, out ready for encoding the next reply
+    private ByteBuffer in;
+    private ByteBuffer out;
+    // A reply too big for out, written once out is drained
+    private ByteBuffer overflow;
+    // Picked from the first byte the client sends
+    private Codec codec;
+    private final ArrayDeque<Reply> replies = new ArrayDeque<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // A read waits for the writes sent before it on the same connection, so a client reads its own writes.
+    private CompletableFuture<?> lastWrite = CompletableFuture.completedFuture(null);
+    private boolean inputClosed;
+    private boolean closed;
+
+    Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.in = loop.acquireBuffer();
+        this.out = loop.acquireBuffer();
+    }
+
+    void onReadable() {
+        try {
+            if (channel.read(in) < 0) {
+                inputClosed = true;
+            }
+            decodeBuffered();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        flushReplies();
+    }
+
+    void onWritable() {
+        flushReplies();
+    }
+
+    // Some request of this connection completed.
+    void onReady() {
+        if (closed) return;
+        flushReplies();
+        if (closed) return;
+        try {
+            // Bytes left over when the pipeline was full
+            decodeBuffered();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        updateInterest();
+    }
+
+    private void decodeBuffered() throws IOException {
+        in.flip();
+        try {
+            if (codec == null && in.hasRemaining()) {
+                // Text commands start with a letter, binary frames with the magic byte.
+                codec = in.get(in.position()) == BinaryProtocol.MAGIC ? BinaryProtocol.INSTANCE : TextProtocol.INSTANCE;
+            }
+            while (inFlight.get() < loop.pipelineDepth && in.hasRemaining()) {
+                if (!codec.decode(this, in)) break;
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    // Called by a decoder when the next request needs more room than the read buffer has.
+    void expect(long bytes) throws IOException {
+        if (bytes > (long) Shards.maxRecordSize() + EventLoop.BUFFER_SIZE) {
+            throw new IOException("Request of " + bytes + " bytes is too big");
+        }
+        if (bytes > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.max(bytes, in.capacity() * 2L));
+            bigger.put(in);
+            bigger.flip();
+            loop.releaseBuffer(in);
+            in = bigger;
+        }
+    }
+
+    CompletableFuture<byte[]> read(long key) {
+        return lastWrite.isDone()
+                ? CompletableFuture.supplyAsync(() -> Shards.get(key), loop.executor)
+                : lastWrite.handleAsync((done, e) -> Shards.get(key), loop.executor);
+    }
+
+    // Whether a request with this many replies can start without going over pipelineDepth. Every key
+    // of an MGET is a reply of its own, one with more keys than the pipeline holds is refused.
+    boolean hasRoom(int replies) throws IOException {
+        if (replies > loop.pipelineDepth) {
+            throw new IOException("MGET of " + replies + " keys is over the pipeline depth of " + loop.pipelineDepth);
+        }
+        return inFlight.get() + replies <= loop.pipelineDepth;
+    }
+
+    // One reply per key, all of them looked up in a single pass once the earlier writes are done.
+    // The decoder checks hasRoom first.
+    void readAll(long[] keys, int requestId, byte opcode, boolean expectsReply) {
+        List<CompletableFuture<byte[]>> results = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            results.add(result);
+            submit(result, requestId, opcode, expectsReply);
+        }
+        lastWrite.handleAsync((done, e) -> {
+            Shards.getAll(keys, results);
+            return null;
+        }, loop.executor);
+    }
+
+    CompletableFuture<List<Worker.KeyValue>> scan(long from, long to, int limit) {
+        return lastWrite.handleAsync((done, e) -> Shards.scan(from, to, limit), loop.executor);
+    }
+
+    // Completes with the stream once the snapshot is taken, the chunks keep coming while the reply is sent.
+    CompletableFuture<ExportStream> export(Export.Format format) {
+        ExportStream stream = new ExportStream(() -> loop.ready(this));
+        CompletableFuture<ExportStream> result = new CompletableFuture<>();
+        lastWrite.handleAsync((done, e) -> {
+            Export export;
+            try {
+                export = Export.snapshot(format);
+            } catch (IOException | RuntimeException snapshotError) {
+                result.completeExceptionally(snapshotError);
+                return null;
+            }
+            result.complete(stream);
+            try {
+                export.writeTo(stream);
+                stream.finish();
+            } catch (IOException | RuntimeException writeError) {
+                writeError.printStackTrace();
+                stream.fail(writeError);
+            }
+            return null;
+        }, loop.executor);
+        return result;
+    }
+
+    CompletableFuture<byte[]> async(Supplier<byte[]> task) {
+        return CompletableFuture.supplyAsync(task, loop.executor);
+    }
+
+    void write(CompletableFuture<Void> write, int requestId, byte opcode, boolean expectsReply) {
+        CompletableFuture<byte[]> result = write.thenApply(done -> null);
+        lastWrite = result;
+        submit(result, requestId, opcode, expectsReply);
+    }
+
+    void submit(CompletableFuture<?> result, int requestId, byte opcode, boolean expectsReply) {
+        long start = System.nanoTime();
+        inFlight.incrementAndGet();
+        if (expectsReply) {
+            replies.add(new Reply(result, requestId, opcode));
+            result.whenComplete((value, e) -> {
+                Metrics.record(opcode, start, e != null);
+                loop.ready(this);
+            });
+        } else {
+            result.whenComplete((value, e) -> {
+                Metrics.record(opcode, start, e != null);
+                if (e != null) logError(e);
+                inFlight.decrementAndGet();
+                loop.ready(this);
+            });
+        }
+    }
+
+    private static void logError(Throwable e) {
+        Throwable cause = (e instanceof CompletionException || e instanceof CancellationException) && e.getCause() != null
+                ? e.getCause() : e;
+        long now = System.currentTimeMillis();
+        long last = errorLoggedAt.get();
+        if (now - last < ERROR_LOG_INTERVAL_MS || !errorLoggedAt.compareAndSet(last, now)) {
+            errorsNotLogged.incrementAndGet();
+            return;
+        }
+        long skipped = errorsNotLogged.getAndSet(0);
+        System.err.println("Request failed: " + cause + (skipped > 0 ? " (" + skipped + " more failed since the last one logged)" : ""));
+    }
+
+    // Encodes the replies that are done, stops at the first one that isn't to keep them in order.
+    private void flushReplies() {
+        if (closed) return;
+        try {
+            Reply head;
+            while ((head = replies.peek()) != null && head.result().isDone()) {
+                Object value = null;
+                byte status = BinaryProtocol.OK;
+                try {
+                    value = head.result().join();
+                    if (value == null && (head.opcode() == BinaryProtocol.GET || head.opcode() == BinaryProtocol.MGET)) {
+                        status = BinaryProtocol.NOT_FOUND;
+                    }
+                } catch (CompletionException | CancellationException e) {
+                    logError(e);
+                    status = BinaryProtocol.ERROR;
+                }
+                if (value instanceof ExportStream stream) {
+                    if (!flushStream(head, stream)) break;
+                } else if (!encode(head.requestId(), head.opcode(), status, value)) {
+                    break;
+                }
+                replies.poll();
+                inFlight.decrementAndGet();
+            }
+            drain();
+        } catch (IOException e) {
+            close();
+            return;
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        updateInterest();
+    }
+
+    // Sends the chunks the export produced so far, returns true once it is complete.
+    private boolean flushStream(Reply head, ExportStream stream) throws IOException {
+        byte[] chunk;
+        while ((chunk = stream.peek()) != null) {
+            if (chunk == ExportStream.END) {
+                byte status = stream.failure() != null ? BinaryProtocol.ERROR : BinaryProtocol.END;
+                if (!encode(head.requestId(), BinaryProtocol.EXPORT, status, null)) return false;
+                stream.poll();
+                return true;
+            }
+            if (!encode(head.requestId(), BinaryProtocol.EXPORT, BinaryProtocol.OK, chunk)) return false;
+            stream.poll();
+        }
+        return false;
+    }
+
+    // Returns false if there is no room for the reply until the socket takes more output.
+    private boolean encode(int requestId, byte opcode, byte status, Object value) throws IOException {
+        int size = codec.encodedSize(opcode, status, value);
+        if ((overflow != null || out.remaining() < size) && !drain()) {
+            return false;
+        }
+        ByteBuffer target = out;
+        if (out.remaining() < size) {
+            overflow = ByteBuffer.allocate(size);
+            target = overflow;
+        }
+        codec.encode(target, requestId, opcode, status, value);
+        if (target == overflow) overflow.flip();
+        return true;
+    }
+
+    // Returns true once everything encoded so far went out.
+    private boolean drain() throws IOException {
+        if (out.position() > 0) {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() > 0) return false;
+        }
+        if (overflow != null) {
+            channel.write(overflow);
+            if (overflow.hasRemaining()) return false;
+            overflow = null;
+        }
+        return true;
+    }
+
+    private void updateInterest() {
+        if (closed) return;
+        boolean pendingOutput = out.position() > 0 || overflow != null;
+        if (inputClosed && replies.isEmpty() && inFlight.get() == 0 && !pendingOutput) {
+            // The client is done sending and got all its replies.
+            close();
+            return;
+        }
+        int ops = 0;
+        if (!inputClosed && inFlight.get() < loop.pipelineDepth && in.hasRemaining()) ops |= SelectionKey.OP_READ;
+        if (pendingOutput) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    // Only this connection goes, whatever went wrong with it must not take the event loop down.
+    private void fail(Exception e) {
+        if (e instanceof IOException) {
+            System.err.println("Closing connection " + remoteAddress() + ": " + e.getMessage());
+        } else {
+            System.err.println("Closing connection " + remoteAddress() + " after an error:");
+            e.printStackTrace();
+        }
+        close();
+    }
+
+    private String remoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        for (Reply reply : replies) {
+            // Stops exports still running for this connection
+            reply.result().thenAccept(value -> {
+                if (value instanceof ExportStream stream) stream.cancel();
+            });
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        loop.releaseBuffer(in);
+        loop.releaseBuffer(out);
+        loop.closed();
+    }
+}
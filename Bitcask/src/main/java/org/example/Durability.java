@@ -0,0 +1,12 @@
+package org.example;
+
+// When an acknowledged write is guaranteed to be on disk.
+public enum Durability {
+    // Written to the OS page cache, never forced. Survives a process crash, not a power loss.
+    NONE,
+    // Written to the page cache and forced by a background timer every server.durability.interval.ms.
+    INTERVAL,
+    // Writes arriving within server.durability.group.window.us share one write and one force,
+    // and are only acknowledged once that force returned.
+    GROUP
+}
@@ -0,0 +1,133 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One selector thread serving many connections. The Server's acceptor hands connections over,
+// requests are decoded on this thread and passed on without ever blocking it: writes go to the
+// appender, reads run on the shared executor. Whenever a result is ready its connection is queued
+// back here and the loop writes out whatever replies are done, in request order.
+public class EventLoop implements Runnable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    final ExecutorService executor;
+    final int pipelineDepth;
+    private final Runnable onClose;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Read and write buffers of closed connections, reused by the next ones.
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    public EventLoop(String name, ExecutorService executor, int pipelineDepth, Runnable onClose) throws IOException {
+        this.selector = Selector.open();
+        this.executor = executor;
+        this.pipelineDepth = pipelineDepth;
+        this.onClose = onClose;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Called by the acceptor.
+    public void register(SocketChannel channel) {
+        accepted.add(channel);
+        wakeup();
+    }
+
+    // Called from any thread once a request of the connection completed.
+    void ready(Connection connection) {
+        ready.add(connection);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+
+                SocketChannel channel;
+                while ((channel = accepted.poll()) != null) {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                }
+
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    try {
+                        connection.onReady();
+                    } catch (RuntimeException e) {
+                        drop(connection, e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (RuntimeException e) {
+                        drop(connection, e);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A connection that failed in a way it didn't handle itself, the others of the loop carry on.
+    private static void drop(Connection connection, RuntimeException e) {
+        System.err.println("Dropping a connection after an error:");
+        e.printStackTrace();
+        try {
+            connection.close();
+        } catch (RuntimeException ignored) {}
+    }
+
+    ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        // Buffers grown for a big frame are left to the GC.
+        if (buffer.capacity() == BUFFER_SIZE && buffers.size() < MAX_POOLED_BUFFERS) {
+            buffers.push(buffer.clear());
+        }
+    }
+
+    void closed() {
+        onClose.run();
+    }
+}
@@ -0,0 +1,211 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Point-in-time dump of every live key, streamed in bounded chunks, one shard after the other.
+//
+// The snapshot only copies the location of each live record and opens the segments they are in, both
+// under the shard's read lock. An open channel keeps reading the file it was opened on even after a
+// compaction renamed over it or deleted it, so the export sees exactly the store of that moment while
+// writes and merges go on. Locations are sorted, so each segment is read front to back in large windows instead
+// of one positional read per key.
+//
+// Formats:
+//   CSV     "Key,Value" header, then "<key>,<value>" lines
+//   BINARY  [long key][int valueSize][value] per entry
+final class Export {
+    enum Format { CSV, BINARY }
+
+    interface Sink {
+        void write(byte[] chunk) throws IOException;
+    }
+
+    static final int CHUNK_SIZE = 32 * 1024;
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    // What one shard contributes, locations are fileId << 32 | offset, ascending
+    private record Part(long[] locations, HashMap<Integer, FileChannel> channels) {}
+
+    private final Format format;
+    private final List<Part> parts;
+    // Segments of the part being written
+    private HashMap<Integer, FileChannel> channels;
+
+    private ByteBuffer window = ByteBuffer.allocateDirect(WINDOW_SIZE);
+    private int windowFileId = -1;
+    private long windowStart;
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+    private Export(Format format, List<Part> parts) {
+        this.format = format;
+        this.parts = parts;
+    }
+
+    static Format formatOf(String fileName) {
+        return fileName.endsWith(".bin") ? Format.BINARY : Format.CSV;
+    }
+
+    static Export snapshot(Format format) throws IOException {
+        List<Part> parts = new ArrayList<>();
+        try {
+            for (Worker shard : Shards.all()) {
+                parts.add(snapshot(shard));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Part part : parts) {
+                closeAll(part.channels());
+            }
+            throw e;
+        }
+        return new Export(format, parts);
+    }
+
+    private static Part snapshot(Worker shard) throws IOException {
+        HashMap<Integer, FileChannel> channels = new HashMap<>();
+        shard.lockRead();
+        try {
+            long[][] locations = { new long[Math.max(16, shard.inMemory.size())] };
+            int[] count = { 0 };
+            shard.inMemory.forEach((key, fileId, offset, size, timestamp) -> {
+                if (count[0] == locations[0].length) locations[0] = Arrays.copyOf(locations[0], count[0] * 2);
+                locations[0][count[0]++] = ((long) fileId << 32) | (offset & 0xFFFFFFFFL);
+            });
+            long[] sorted = Arrays.copyOf(locations[0], count[0]);
+            Arrays.sort(sorted);
+            for (int i = 0; i < sorted.length; i++) {
+                int fileId = (int) (sorted[i] >>> 32);
+                if (!channels.containsKey(fileId)) {
+                    channels.put(fileId, FileChannel.open(Paths.get(shard.filePath + fileId), StandardOpenOption.READ));
+                }
+            }
+            return new Part(sorted, channels);
+        } catch (IOException | RuntimeException e) {
+            closeAll(channels);
+            throw e;
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Part part : parts) {
+            size += part.locations().length;
+        }
+        return size;
+    }
+
+    // Hands the whole export to sink in chunks of about CHUNK_SIZE bytes, returns the number of entries.
+    // The segments are closed afterwards, an Export can only be written once.
+    long writeTo(Sink sink) throws IOException {
+        try {
+            long written = 0;
+            if (format == Format.CSV) {
+                put(sink, "Key,Value\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            for (Part part : parts) {
+                written += writePart(part, sink);
+            }
+            if (chunk.position() > 0) {
+                sink.write(Arrays.copyOf(chunk.array(), chunk.position()));
+            }
+            return written;
+        } finally {
+            for (Part part : parts) {
+                closeAll(part.channels());
+            }
+        }
+    }
+
+    private long writePart(Part part, Sink sink) throws IOException {
+        channels = part.channels();
+        windowFileId = -1;
+        long written = 0;
+        for (long location : part.locations()) {
+            int fileId = (int) (location >>> 32);
+            long offset = location & 0xFFFFFFFFL;
+            ensure(fileId, offset, Record.HEADER_SIZE);
+            int start = (int) (offset - windowStart);
+            int size = Record.sizeAt(window, start);
+            if (size > 0) {
+                ensure(fileId, offset, size);
+                start = (int) (offset - windowStart);
+            }
+            if (size < 0 || !Record.isIntact(window, start, size)) {
+                System.err.println("Export skipped corrupt record in segment " + fileId + " at offset " + offset);
+                continue;
+            }
+            long key = Record.keyAt(window, start);
+            int valueSize = size - Record.HEADER_SIZE;
+            if (format == Format.CSV) {
+                put(sink, (key + ",").getBytes(StandardCharsets.US_ASCII));
+                put(sink, window.slice(start + Record.HEADER_SIZE, valueSize));
+                put(sink, new byte[]{'\n'});
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(key).putInt(valueSize);
+                put(sink, header.array());
+                put(sink, window.slice(start + Record.HEADER_SIZE, valueSize));
+            }
+            written++;
+        }
+        return written;
+    }
+
+    // Makes the window hold [offset, offset + length) of the segment.
+    private void ensure(int fileId, long offset, int length) throws IOException {
+        if (fileId == windowFileId && offset >= windowStart && offset + length <= windowStart + window.limit()) {
+            return;
+        }
+        if (length > window.capacity()) {
+            window = ByteBuffer.allocateDirect(length);
+        }
+        FileChannel channel = channels.get(fileId);
+        window.clear();
+        long position = offset;
+        while (window.hasRemaining()) {
+            int read = channel.read(window, position);
+            if (read < 0) break;
+            position += read;
+        }
+        window.flip();
+        windowFileId = fileId;
+        windowStart = offset;
+        if (window.limit() < length) {
+            throw new IOException("Unexpected end of segment " + fileId + " at " + offset);
+        }
+    }
+
+    private void put(Sink sink, byte[] bytes) throws IOException {
+        put(sink, ByteBuffer.wrap(bytes));
+    }
+
+    private void put(Sink sink, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (!chunk.hasRemaining()) {
+                sink.write(chunk.array());
+                chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            }
+            int n = Math.min(bytes.remaining(), chunk.remaining());
+            chunk.put(chunk.position(), bytes, bytes.position(), n);
+            chunk.position(chunk.position() + n);
+            bytes.position(bytes.position() + n);
+        }
+    }
+
+    private static void closeAll(HashMap<Integer, FileChannel> channels) {
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Hands the chunks of an export running on the executor over to the event loop of its connection.
+// The queue is small, so a slow client slows the export down instead of it piling up on the heap.
+final class ExportStream implements Export.Sink {
+    static final byte[] END = new byte[0];
+    private static final int MAX_QUEUED_CHUNKS = 4;
+
+    private final ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+    private final Runnable onChunk;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+
+    ExportStream(Runnable onChunk) {
+        this.onChunk = onChunk;
+    }
+
+    @Override
+    public void write(byte[] chunk) throws IOException {
+        if (cancelled) {
+            throw new IOException("Export cancelled, the connection is closed");
+        }
+        try {
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        }
+        onChunk.run();
+    }
+
+    void finish() {
+        if (cancelled) return;
+        try {
+            chunks.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        onChunk.run();
+    }
+
+    void fail(Throwable e) {
+        failure = e;
+        finish();
+    }
+
+    Throwable failure() {
+        return failure;
+    }
+
+    // Called on the event loop thread only.
+    byte[] peek() {
+        return chunks.peek();
+    }
+
+    void poll() {
+        chunks.poll();
+    }
+
+    void cancel() {
+        cancelled = true;
+        chunks.clear();
+    }
+}
@@ -0,0 +1,63 @@
+package org.example;
+
+// Count-min sketch of how often each key was asked for, the TinyLFU half of ValueCache.
+// Four rows of 4 bit counters (kept one per byte), the estimate is the smallest of the four.
+// After sampleSize increments every counter is halved, so old popularity fades out.
+// Not thread safe, ValueCache keeps one per shard under the shard's lock.
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final byte[][] rows;
+    private final int mask;
+    private final int sampleSize;
+    private int increments;
+
+    // width has to be a power of two
+    FrequencySketch(int width) {
+        this.rows = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    static long spread(long key) {
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return key ^ (key >>> 33);
+    }
+
+    private int index(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (h >>> 32) & mask;
+    }
+
+    void increment(long key) {
+        long hash = spread(key);
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (rows[row][i] < MAX_COUNT) rows[row][i]++;
+        }
+        if (++increments == sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(long key) {
+        long hash = spread(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, rows[row][index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        increments /= 2;
+    }
+}
@@ -0,0 +1,229 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+// Reads the keydir entries of one segment at startup: from its hint file when there is a usable one,
+// by scanning the segment itself when the hint file is missing or truncated. Both files are memory
+// mapped, nothing is copied to the heap. Loaders of different segments run in parallel, the Worker
+// merges their entries in file id order so the newest entry of a key wins.
+// Like in the hint files, a tombstone is an entry with the negated record size.
+//
+// Segments written before the versioned record format, [int valueSize][long key][value] with 12 byte
+// hint entries, are converted to it in place the first time they are loaded. Whether a store is in the
+// old format is decided once for all of it, see isLegacyStore: a torn first record looks just as
+// unversioned as an old segment does. Only in an old store, where nothing but the conversion ever
+// wrote version 1 records, does a segment starting with one count as converted already.
+public class HintLoader implements Callable<HintLoader> {
+    // Before the versioned format: [int valueSize][long key] records, [long key][int offset] hints
+    private static final int LEGACY_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int LEGACY_HINT_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+
+    final int fileId;
+    private final File segment;
+    private final File hint;
+    private final boolean legacy;
+    // The highest segment, the only one a crash can have torn
+    private final boolean last;
+    // Three longs per entry: key, offset << 32 | size, timestamp
+    long[] entries = new long[0];
+    int count;
+    // The segment had to be scanned, its hint file has to be written again.
+    boolean scanned;
+
+    public HintLoader(int fileId, File segment, File hint, boolean legacy, boolean last) {
+        this.fileId = fileId;
+        this.segment = segment;
+        this.hint = hint;
+        this.legacy = legacy;
+        this.last = last;
+    }
+
+    long key(int i) {
+        return entries[i * 3];
+    }
+
+    int offset(int i) {
+        return (int) (entries[i * 3 + 1] >>> 32);
+    }
+
+    int size(int i) {
+        return (int) entries[i * 3 + 1];
+    }
+
+    boolean isTombstone(int i) {
+        return size(i) < 0;
+    }
+
+    long timestamp(int i) {
+        return entries[i * 3 + 2];
+    }
+
+    @Override
+    public HintLoader call() throws IOException {
+        if (legacy && segment.length() > 0 && !startsWithRecord(segment)) {
+            convertLegacy();
+            scan();
+        } else if (!hint.exists()) {
+            // The active segment of the previous run, hint files are only written on rotation.
+            scan();
+        } else if (!loadHint()) {
+            System.out.println("Hint file " + fileId + " is truncated, scanning segment " + fileId);
+            count = 0;
+            scan();
+        }
+        return this;
+    }
+
+    private void add(long key, int offset, int size, long timestamp) {
+        if (count * 3 == entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(48, entries.length * 2));
+        }
+        entries[count * 3] = key;
+        entries[count * 3 + 1] = (long) offset << 32 | (size & 0xFFFFFFFFL);
+        entries[count * 3 + 2] = timestamp;
+        count++;
+    }
+
+    // False if the hint file doesn't fit its segment, e.g. a crash cut it short.
+    private boolean loadHint() throws IOException {
+        long segmentLength = segment.length();
+        try (FileChannel channel = FileChannel.open(hint.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length % Worker.hintEntrySize != 0) {
+                if (length % LEGACY_HINT_ENTRY_SIZE == 0) {
+                    System.out.println("Hint file " + fileId + " has the old 12 byte entries, scanning segment " + fileId);
+                }
+                return false;
+            }
+            entries = new long[(int) (length / Worker.hintEntrySize) * 3];
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            while (map.hasRemaining()) {
+                long key = map.getLong();
+                int offset = map.getInt();
+                int size = map.getInt();
+                long timestamp = map.getLong();
+                int recordSize = Math.abs(size);
+                if (offset < 0 || recordSize < Record.HEADER_SIZE || (long) offset + recordSize > segmentLength) {
+                    return false;
+                }
+                add(key, offset, size, timestamp);
+            }
+        }
+        return true;
+    }
+
+    // Stops at the first record that is torn or fails its checksum and cuts the segment off there,
+    // everything before it is known to be intact. Only the highest segment may lose its very first
+    // record that way, the others were forced before the next one was opened.
+    private void scan() throws IOException {
+        scanned = true;
+        int end = 0;
+        long length;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            length = channel.size();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            while (map.limit() - end >= Record.HEADER_SIZE) {
+                int size = Record.sizeAt(map, end);
+                if (size < 0 || size > map.limit() - end || !Record.isIntact(map, end, size)) {
+                    break;
+                }
+                long key = Record.keyAt(map, end);
+                add(key, end, Record.isTombstone(map, end) ? -size : size, Record.timestampAt(map, end));
+                end += size;
+            }
+        }
+        if (end == 0 && length > 0 && !last) {
+            throw new IOException("Segment " + segment + " doesn't start with a valid record, refusing to start."
+                    + " Move it out of the data folder if it is to be dropped");
+        }
+        if (end < length) {
+            System.out.println("Truncating segment " + fileId + " at the first bad record, offset " + end);
+            try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        System.out.println("Recovered segment " + fileId + " by scanning it, " + count + " records");
+    }
+
+    // For a store without a format file: old format if it has data and none of its segments starts
+    // with an intact version 1 record.
+    static boolean isLegacyStore(File[] segments) throws IOException {
+        boolean empty = true;
+        for (File segment : segments) {
+            if (segment.length() == 0) continue;
+            empty = false;
+            if (startsWithRecord(segment)) return false;
+        }
+        return !empty;
+    }
+
+    private static boolean startsWithRecord(File segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < Record.HEADER_SIZE) return false;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int size = Record.sizeAt(map, 0);
+            return size >= 0 && size <= length && Record.isIntact(map, 0, size);
+        }
+    }
+
+    // Rewrites an old [int valueSize][long key][value] segment as version 1 records, stamped with the
+    // time the segment was last written. The segment has to parse to its last byte, anything else is
+    // refused rather than guessed at, except for a torn record at the end of the highest segment. The old hint file goes first, so a crash before the rename
+    // leaves the old segment to be converted again and never a new segment next to old hints.
+    private void convertLegacy() throws IOException {
+        Path path = segment.toPath();
+        Path converted = Path.of(segment.getPath() + Compactor.TMP_SUFFIX);
+        long timestamp = segment.lastModified();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            long convertedLength = 0;
+            int records = 0;
+            int p = 0;
+            while (length - p >= LEGACY_HEADER_SIZE) {
+                int valueSize = map.getInt(p);
+                if (valueSize < 0 || valueSize > length - p - LEGACY_HEADER_SIZE) break;
+                p += LEGACY_HEADER_SIZE + valueSize;
+                convertedLength += Record.HEADER_SIZE + valueSize;
+                records++;
+            }
+            if (p != length && last) {
+                System.out.println("Dropping the torn end of segment " + fileId + " at offset " + p);
+                length = p;
+            }
+            if (p != length || convertedLength > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + segment + " is neither in the record format nor in the old"
+                        + " unversioned one (stopped at offset " + p + " of " + length + "), refusing to start");
+            }
+            ByteBuffer out = ByteBuffer.allocateDirect((int) convertedLength);
+            for (p = 0; p < length; ) {
+                int valueSize = map.getInt(p);
+                int start = out.position();
+                Record.putHeader(out, map.getLong(p + Integer.BYTES), timestamp, (byte) 0, valueSize);
+                out.put(map.slice(p + LEGACY_HEADER_SIZE, valueSize));
+                Record.seal(out, start, Record.HEADER_SIZE + valueSize);
+                p += LEGACY_HEADER_SIZE + valueSize;
+            }
+            out.flip();
+            try (FileChannel target = FileChannel.open(converted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) target.write(out);
+                target.force(true);
+            }
+            System.out.println("Converting segment " + fileId + " from the old format, " + records + " records");
+        }
+        Files.deleteIfExists(hint.toPath());
+        Files.move(converted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,31 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+// Caps background I/O to a budget in MB/s by making the caller sleep once it got ahead of the budget.
+public class IoThrottle {
+    private final double nanosPerByte;
+    private long nextFree;
+
+    // mbPerSecond <= 0 means unlimited.
+    public IoThrottle(double mbPerSecond) {
+        this.nanosPerByte = mbPerSecond > 0 ? 1e9 / (mbPerSecond * 1024 * 1024) : 0;
+    }
+
+    public void acquire(long bytes) {
+        if (nanosPerByte == 0 || bytes <= 0) return;
+        long sleepNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now) + (long) (bytes * nanosPerByte);
+            sleepNanos = nextFree - now;
+        }
+        if (sleepNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.example;
+
+import java.util.concurrent.locks.StampedLock;
+
+// Open addressing (linear probing) hash table specialized for long keys.
+// Every slot takes 4 longs inline in one array: [key][fileId << 32 | offset][size][timestamp],
+// so a put or a get never allocates and the footprint is 32 bytes * capacity.
+// Key 0 is used as the empty marker, the real key 0 lives in the extra slot at the end of the table.
+//
+// Writers are serialized by a StampedLock. Readers use optimistic reads and only fall back
+// to the read lock when a write raced with them, so a get never blocks behind the appender.
+public class KeyDir {
+    private static final int STRIDE = 4;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    public interface Visitor {
+        void visit(long key, int fileId, int offset, int size, long timestamp);
+    }
+
+    // Caller owned holder so that a get does not have to allocate.
+    public static final class Entry {
+        public int fileId;
+        public int offset;
+        public int size;
+        public long timestamp;
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private volatile long[] table;
+    private int size;
+    private int maxFill;
+
+    public KeyDir(int expectedKeys) {
+        table = allocate(tableSizeFor(expectedKeys));
+    }
+
+    private static int tableSizeFor(int expectedKeys) {
+        long needed = (long) Math.ceil(Math.max(expectedKeys, 2) / (double) LOAD_FACTOR);
+        return (int) Math.max(2, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    private long[] allocate(int capacity) {
+        maxFill = (int) (capacity * LOAD_FACTOR);
+        return new long[(capacity + 1) * STRIDE];
+    }
+
+    private static int capacityOf(long[] table) {
+        return table.length / STRIDE - 1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // Returns the slot of the key, or -1 if it is not present.
+    private static int slotOf(long[] table, long key) {
+        int capacity = capacityOf(table);
+        if (key == 0) {
+            return table[capacity * STRIDE + 2] != 0 ? capacity : -1;
+        }
+        int mask = capacity - 1;
+        int slot = mix(key) & mask;
+        long current;
+        while ((current = table[slot * STRIDE]) != 0) {
+            if (current == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean read(long[] table, long key, Entry into) {
+        int slot = slotOf(table, key);
+        if (slot < 0) return false;
+        int base = slot * STRIDE;
+        long location = table[base + 1];
+        into.fileId = (int) (location >>> 32);
+        into.offset = (int) location;
+        into.size = (int) table[base + 2];
+        into.timestamp = table[base + 3];
+        return true;
+    }
+
+    public boolean get(long key, Entry into) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = read(table, key, into);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = read(table, key, into);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key, new Entry());
+    }
+
+    public void put(long key, int fileId, int offset, int size, long timestamp) {
+        put(key, fileId, offset, size, timestamp, null);
+    }
+
+    // Fills previous (when given) with the entry that got replaced, returns false if the key is new.
+    public boolean put(long key, int fileId, int offset, int size, long timestamp, Entry previous) {
+        long stamp = lock.writeLock();
+        try {
+            boolean replaced = previous != null ? read(table, key, previous) : slotOf(table, key) >= 0;
+            putLocked(key, fileId, offset, size, timestamp);
+            return replaced;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Only moves the key if it still points to the given record,
+    // so a newer write that raced with a merge is never overwritten.
+    public boolean replaceIfAt(long key, int expectedFileId, int expectedOffset, int fileId, int offset, int size, long timestamp) {
+        long expected = ((long) expectedFileId << 32) | (expectedOffset & 0xFFFFFFFFL);
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(table, key);
+            if (slot < 0 || table[slot * STRIDE + 1] != expected) {
+                return false;
+            }
+            set(table, slot, fileId, offset, size, timestamp);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Fills previous (when given) with the removed entry, returns false if the key was not there.
+    public boolean remove(long key, Entry previous) {
+        long stamp = lock.writeLock();
+        try {
+            long[] table = this.table;
+            int slot = slotOf(table, key);
+            if (slot < 0) {
+                return false;
+            }
+            if (previous != null) {
+                read(table, key, previous);
+            }
+            if (key == 0) {
+                set(table, slot, 0, 0, 0, 0);
+            } else {
+                deleteSlot(table, slot);
+            }
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Backward shift deletion: entries after the hole that would no longer be reachable from
+    // their home slot move into it, so lookups never need tombstones in the table.
+    private static void deleteSlot(long[] table, int hole) {
+        int mask = capacityOf(table) - 1;
+        int next = (hole + 1) & mask;
+        long key;
+        while ((key = table[next * STRIDE]) != 0) {
+            int home = mix(key) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                System.arraycopy(table, next * STRIDE, table, hole * STRIDE, STRIDE);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole * STRIDE] = 0;
+        set(table, hole, 0, 0, 0, 0);
+    }
+
+    private void putLocked(long key, int fileId, int offset, int size, long timestamp) {
+        long[] table = this.table;
+        int capacity = capacityOf(table);
+        int slot;
+        if (key == 0) {
+            slot = capacity;
+            if (table[slot * STRIDE + 2] == 0) {
+                this.size++;
+            }
+        } else {
+            int mask = capacity - 1;
+            slot = mix(key) & mask;
+            long current;
+            while ((current = table[slot * STRIDE]) != 0 && current != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (current == 0) {
+                if (this.size + 1 >= maxFill) {
+                    this.table = rehash(table, capacity * 2);
+                    putLocked(key, fileId, offset, size, timestamp);
+                    return;
+                }
+                this.size++;
+                // the value words go first, readers treat the key word as the publication point
+                set(table, slot, fileId, offset, size, timestamp);
+                table[slot * STRIDE] = key;
+                return;
+            }
+        }
+        set(table, slot, fileId, offset, size, timestamp);
+    }
+
+    private static void set(long[] table, int slot, int fileId, int offset, int size, long timestamp) {
+        int base = slot * STRIDE;
+        table[base + 1] = ((long) fileId << 32) | (offset & 0xFFFFFFFFL);
+        table[base + 2] = size;
+        table[base + 3] = timestamp;
+    }
+
+    // Builds the bigger table aside and lets the caller publish it, readers keep using the old one meanwhile.
+    private long[] rehash(long[] old, int newCapacity) {
+        int oldCapacity = capacityOf(old);
+        long[] table = allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long key = old[i * STRIDE];
+            if (key == 0) continue;
+            int slot = mix(key) & mask;
+            while (table[slot * STRIDE] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(old, i * STRIDE, table, slot * STRIDE, STRIDE);
+        }
+        // carry over the zero key slot
+        System.arraycopy(old, oldCapacity * STRIDE, table, newCapacity * STRIDE, STRIDE);
+        return table;
+    }
+
+    // Iterates over a copy of the table, so the visitor can take its time without holding up writers.
+    public void forEach(Visitor visitor) {
+        long[] snapshot;
+        long stamp = lock.readLock();
+        try {
+            snapshot = table.clone();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        int capacity = capacityOf(snapshot);
+        for (int slot = 0; slot <= capacity; slot++) {
+            int base = slot * STRIDE;
+            long key = snapshot[base];
+            if (key != 0 || (slot == capacity && snapshot[base + 2] != 0)) {
+                long location = snapshot[base + 1];
+                visitor.visit(key, (int) (location >>> 32), (int) location, (int) snapshot[base + 2], snapshot[base + 3]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = allocate(capacityOf(table));
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Bytes held by the table itself, useful to size server.keydir.capacity up front.
+    public long memoryFootprint() {
+        return (long) table.length * Long.BYTES;
+    }
+}
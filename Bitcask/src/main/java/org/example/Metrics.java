@@ -0,0 +1,166 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Request latencies and engine state in the Prometheus text format, served on /metrics of
+// server.metrics.port and by the "stats" text command.
+//
+// Every request is timed from the moment it is decoded until its result is ready, into a wait-free
+// HdrHistogram recorder per command. A scrape moves what was recorded since the previous one into a
+// histogram covering the whole uptime, the quantiles are over that. Everything else is read from the
+// shards at scrape time, nothing is counted twice on the request path.
+final class Metrics {
+    // Indexed by opcode, 0 is the text protocol's whole-store commands
+    private static final String[] COMMANDS = {"admin", "put", "get", "delete", "mget", "mput", "scan", "export"};
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    static final AtomicInteger connections = new AtomicInteger();
+
+    private static final Recorder[] recorders = new Recorder[COMMANDS.length];
+    private static final Histogram[] latencies = new Histogram[COMMANDS.length];
+    private static final LongAdder[] latencyMicros = new LongAdder[COMMANDS.length];
+    private static final LongAdder[] errors = new LongAdder[COMMANDS.length];
+    // Recycled by the recorders on every scrape
+    private static final Histogram[] intervals = new Histogram[COMMANDS.length];
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            recorders[i] = new Recorder(MAX_LATENCY_MICROS, 3);
+            latencies[i] = new Histogram(MAX_LATENCY_MICROS, 3);
+            latencyMicros[i] = new LongAdder();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {}
+
+    static void record(byte opcode, long startNanos, boolean failed) {
+        int command = opcode >= 0 && opcode < COMMANDS.length ? opcode : 0;
+        long micros = Math.min((System.nanoTime() - startNanos) / 1000, MAX_LATENCY_MICROS);
+        recorders[command].recordValue(micros);
+        latencyMicros[command].add(micros);
+        if (failed) errors[command].increment();
+    }
+
+    // Serves /metrics until the process exits, port 0 turns it off.
+    static void serve(int port, ExecutorService executor) throws IOException {
+        if (port <= 0) return;
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("Metrics served on http://0.0.0.0:" + port + "/metrics");
+    }
+
+    static synchronized String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+
+        family(out, "bitcask_request_latency_seconds", "summary", "Time from decoding a request until its result is ready");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            intervals[i] = recorders[i].getIntervalHistogram(intervals[i]);
+            latencies[i].add(intervals[i]);
+            String command = "command=\"" + COMMANDS[i] + "\"";
+            for (double quantile : QUANTILES) {
+                sample(out, "bitcask_request_latency_seconds", command + ",quantile=\"" + quantile + "\"",
+                        latencies[i].getValueAtPercentile(quantile * 100) / 1e6);
+            }
+            sample(out, "bitcask_request_latency_seconds_sum", command, latencyMicros[i].sum() / 1e6);
+            sample(out, "bitcask_request_latency_seconds_count", command, latencies[i].getTotalCount());
+        }
+        family(out, "bitcask_request_errors_total", "counter", "Requests that completed with an error");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            sample(out, "bitcask_request_errors_total", "command=\"" + COMMANDS[i] + "\"", errors[i].sum());
+        }
+
+        family(out, "bitcask_connections", "gauge", "Open client connections");
+        sample(out, "bitcask_connections", null, connections.get());
+
+        Worker[] shards = Shards.all();
+        family(out, "bitcask_keydir_keys", "gauge", "Live keys in the keydir");
+        for (Worker shard : shards) sample(out, "bitcask_keydir_keys", shard(shard), shard.inMemory.size());
+        family(out, "bitcask_keydir_bytes", "gauge", "Memory taken by the keydir");
+        for (Worker shard : shards) sample(out, "bitcask_keydir_bytes", shard(shard), shard.inMemory.memoryFootprint());
+        family(out, "bitcask_segments", "gauge", "Segment files, the active one included");
+        for (Worker shard : shards) {
+            File[] files = Worker.getFilesFromFolder(shard.filePath);
+            sample(out, "bitcask_segments", shard(shard), files != null ? files.length : 0);
+        }
+        family(out, "bitcask_live_bytes", "gauge", "Bytes of segments still referenced by the keydir");
+        for (Worker shard : shards) sample(out, "bitcask_live_bytes", shard(shard), shard.usage.getLiveBytes());
+        family(out, "bitcask_dead_bytes", "gauge", "Bytes of overwritten or deleted records a compaction would reclaim");
+        for (Worker shard : shards) sample(out, "bitcask_dead_bytes", shard(shard), shard.usage.getDeadBytes());
+
+        family(out, "bitcask_appender_batches_total", "counter", "Write batches synced by the appender");
+        for (Worker shard : shards) sample(out, "bitcask_appender_batches_total", shard(shard), shard.appender.getBatches());
+        family(out, "bitcask_appender_records_total", "counter", "Records appended, deletes included");
+        for (Worker shard : shards) sample(out, "bitcask_appender_records_total", shard(shard), shard.appender.getRecords());
+        family(out, "bitcask_appender_rejected_total", "counter", "Writes failed because the appender queue was full");
+        for (Worker shard : shards) sample(out, "bitcask_appender_rejected_total", shard(shard), shard.appender.getRejected());
+        family(out, "bitcask_lock_wait_seconds_total", "counter", "Time spent waiting for the shard lock");
+        for (Worker shard : shards) sample(out, "bitcask_lock_wait_seconds_total", shard(shard), shard.lockWaitNanos.sum() / 1e9);
+
+        family(out, "bitcask_compactions_total", "counter", "Merged compaction batches");
+        for (Worker shard : shards) sample(out, "bitcask_compactions_total", shard(shard), shard.compactor.getMerges());
+        family(out, "bitcask_compaction_seconds_total", "counter", "Time spent merging");
+        for (Worker shard : shards) sample(out, "bitcask_compaction_seconds_total", shard(shard), shard.compactor.getMergeMillis() / 1e3);
+        family(out, "bitcask_compaction_read_bytes_total", "counter", "Bytes read by compactions");
+        for (Worker shard : shards) sample(out, "bitcask_compaction_read_bytes_total", shard(shard), shard.compactor.getBytesRead());
+        family(out, "bitcask_compaction_reclaimed_bytes_total", "counter", "Bytes given back by compactions");
+        for (Worker shard : shards) sample(out, "bitcask_compaction_reclaimed_bytes_total", shard(shard), shard.compactor.getReclaimedBytes());
+
+        family(out, "bitcask_cache_hits_total", "counter", "Reads served by the value cache");
+        for (Worker shard : shards) sample(out, "bitcask_cache_hits_total", shard(shard), shard.cache.getHits());
+        family(out, "bitcask_cache_misses_total", "counter", "Reads that went to a segment");
+        for (Worker shard : shards) sample(out, "bitcask_cache_misses_total", shard(shard), shard.cache.getMisses());
+        family(out, "bitcask_cache_bytes", "gauge", "Bytes of values held by the value cache");
+        for (Worker shard : shards) sample(out, "bitcask_cache_bytes", shard(shard), shard.cache.getBytes());
+
+        if (shards.length > 0 && shards[0].readOnly) {
+            long now = System.currentTimeMillis();
+            family(out, "bitcask_replication_lag_seconds", "gauge", "Time since the leader last confirmed the follower has everything");
+            for (Worker shard : shards) sample(out, "bitcask_replication_lag_seconds", shard(shard), (now - shard.caughtUpAt) / 1e3);
+        }
+        return out.toString();
+    }
+
+    private static String shard(Worker shard) {
+        return "shard=\"" + shard.shard + "\"";
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
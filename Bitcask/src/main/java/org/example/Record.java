@@ -0,0 +1,81 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+// On-disk record, version 1:
+// [int crc][byte version][byte flags][long timestamp][long key][int valueSize][value]
+// The CRC32C covers everything after the crc field. A tombstone is a record with the TOMBSTONE
+// flag and no value, it marks the key as deleted until a merge can drop it.
+//
+// All checks work on absolute positions of the buffer the record already sits in, so neither the
+// readers nor the compactor copy a record to verify it.
+public final class Record {
+    static final byte VERSION = 1;
+    static final byte TOMBSTONE = 1;
+
+    static final int CRC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int FLAGS_OFFSET = 5;
+    static final int TIMESTAMP_OFFSET = 6;
+    static final int KEY_OFFSET = 14;
+    static final int VALUE_SIZE_OFFSET = 22;
+    static final int HEADER_SIZE = 26;
+
+    private Record() {}
+
+    // Writes the header at the buffer position, the crc is filled in by seal once the value follows.
+    static void putHeader(ByteBuffer dst, long key, long timestamp, byte flags, int valueSize) {
+        dst.putInt(0);
+        dst.put(VERSION);
+        dst.put(flags);
+        dst.putLong(timestamp);
+        dst.putLong(key);
+        dst.putInt(valueSize);
+    }
+
+    // Computes and stores the crc of the complete record starting at start.
+    static void seal(ByteBuffer buffer, int start, int size) {
+        buffer.putInt(start + CRC_OFFSET, checksum(buffer, start, size));
+    }
+
+    static int checksum(ByteBuffer buffer, int start, int size) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(start + VERSION_OFFSET, size - VERSION_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    // For a record whose value is not in the same buffer as its header.
+    static int checksum(ByteBuffer header, byte[] value) {
+        CRC32C crc = new CRC32C();
+        crc.update(header.slice(VERSION_OFFSET, HEADER_SIZE - VERSION_OFFSET));
+        crc.update(value, 0, value.length);
+        return (int) crc.getValue();
+    }
+
+    // Size of the record starting at start, or -1 if its header is not a valid version 1 header.
+    static int sizeAt(ByteBuffer buffer, int start) {
+        int valueSize = buffer.getInt(start + VALUE_SIZE_OFFSET);
+        if (buffer.get(start + VERSION_OFFSET) != VERSION || valueSize < 0 || valueSize > Integer.MAX_VALUE - HEADER_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + valueSize;
+    }
+
+    // The whole record has to be in the buffer.
+    static boolean isIntact(ByteBuffer buffer, int start, int size) {
+        return buffer.getInt(start + CRC_OFFSET) == checksum(buffer, start, size);
+    }
+
+    static long keyAt(ByteBuffer buffer, int start) {
+        return buffer.getLong(start + KEY_OFFSET);
+    }
+
+    static long timestampAt(ByteBuffer buffer, int start) {
+        return buffer.getLong(start + TIMESTAMP_OFFSET);
+    }
+
+    static boolean isTombstone(ByteBuffer buffer, int start) {
+        return (buffer.get(start + FLAGS_OFFSET) & TOMBSTONE) != 0;
+    }
+}
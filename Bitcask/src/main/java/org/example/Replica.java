@@ -0,0 +1,168 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Follower side of one shard: tails the leader's log over a ReplicationSource connection and applies
+// the records in order through the shard's own appender, so they land in its own segments and keydir
+// exactly like local writes would, timestamps included.
+//
+// Where it got to in the leader's log is saved in the shard's folder about once a second. After a
+// restart the follower resumes from there, records it gets twice are simply applied again.
+// Reads on the shard fail once the last heartbeat is older than server.replication.max.lag.ms,
+// clients then go to another replica or the leader.
+public class Replica implements Runnable {
+    static final String POSITION_FILE = "replica";
+    private static final long SAVE_INTERVAL_MS = 1000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final Worker engine;
+    private final String host;
+    private final int port;
+    private final int shardCount;
+    private final Thread thread;
+
+    // Position in the leader's log, see ReplicationSource for the handshake
+    private int fileId = -1;
+    private long offset;
+    private long checkOffset = -1;
+    private int checkCrc;
+    private long savedAt;
+
+    public Replica(Worker engine, String leader, int shardCount) {
+        this.engine = engine;
+        String[] address = leader.split(":");
+        this.host = address[0];
+        this.port = Integer.parseInt(address[1]);
+        this.shardCount = shardCount;
+        this.thread = new Thread(this, "bitcask-replica-" + engine.shard);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        loadPosition();
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Socket socket = new Socket(host, port);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                socket.setTcpNoDelay(true);
+                out.writeInt(ReplicationSource.MAGIC);
+                out.writeInt(shardCount);
+                out.writeInt(engine.shard);
+                out.writeInt(fileId);
+                out.writeLong(offset);
+                out.writeLong(checkOffset);
+                out.writeInt(checkCrc);
+                out.flush();
+                follow(in);
+            } catch (IOException e) {
+                System.err.println("Shard " + engine.shard + " lost the leader " + host + ":" + port + ": " + e);
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void follow(DataInputStream in) throws IOException {
+        byte[] records = new byte[0];
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case ReplicationSource.RESET -> {
+                    engine.reset();
+                    fileId = -1;
+                    offset = 0;
+                    checkOffset = -1;
+                    savePosition();
+                }
+                case ReplicationSource.DATA -> {
+                    int dataFileId = in.readInt();
+                    long dataOffset = in.readLong();
+                    int length = in.readInt();
+                    if (records.length < length) records = new byte[length];
+                    in.readFully(records, 0, length);
+                    apply(ByteBuffer.wrap(records, 0, length), dataFileId, dataOffset);
+                    if (System.currentTimeMillis() - savedAt >= SAVE_INTERVAL_MS) savePosition();
+                }
+                case ReplicationSource.HEARTBEAT -> {
+                    in.readLong();
+                    engine.caughtUpAt = System.currentTimeMillis();
+                    if (engine.caughtUpAt - savedAt >= SAVE_INTERVAL_MS) savePosition();
+                }
+                case ReplicationSource.ERROR -> throw new IOException(in.readUTF());
+                default -> throw new IOException("Unknown replication frame " + type);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer records, int dataFileId, long dataOffset) throws IOException {
+        List<Appender.PendingWrite> writes = new ArrayList<>();
+        int position = 0;
+        int last = -1;
+        while (position < records.limit()) {
+            int size = Record.sizeAt(records, position);
+            if (size < 0 || position + size > records.limit() || !Record.isIntact(records, position, size)) {
+                throw new IOException("Corrupt record from the leader in segment " + dataFileId + " at " + (dataOffset + position));
+            }
+            byte[] value = new byte[size - Record.HEADER_SIZE];
+            records.get(position + Record.HEADER_SIZE, value);
+            writes.add(new Appender.PendingWrite(Record.keyAt(records, position), value,
+                    Record.isTombstone(records, position), Record.timestampAt(records, position)));
+            last = position;
+            position += size;
+        }
+        try {
+            engine.appender.replicate(writes.toArray(new Appender.PendingWrite[0])).join();
+        } catch (RuntimeException e) {
+            throw new IOException("Could not apply replicated records", e.getCause() != null ? e.getCause() : e);
+        }
+        fileId = dataFileId;
+        offset = dataOffset + records.limit();
+        checkOffset = dataOffset + last;
+        checkCrc = records.getInt(last + Record.CRC_OFFSET);
+    }
+
+    private void loadPosition() {
+        Path path = Paths.get(engine.filePath + POSITION_FILE);
+        try {
+            if (!Files.exists(path)) return;
+            String[] parts = Files.readString(path, StandardCharsets.UTF_8).trim().split(" ");
+            fileId = Integer.parseInt(parts[0]);
+            offset = Long.parseLong(parts[1]);
+            checkOffset = Long.parseLong(parts[2]);
+            checkCrc = Integer.parseInt(parts[3]);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring the replication position of shard " + engine.shard + ": " + e.getMessage());
+            fileId = -1;
+        }
+    }
+
+    // The records before the position are synced by the appender already.
+    private void savePosition() throws IOException {
+        Path path = Paths.get(engine.filePath + POSITION_FILE);
+        Path tmp = Paths.get(engine.filePath + POSITION_FILE + Compactor.TMP_SUFFIX);
+        Files.writeString(tmp, fileId + " " + offset + " " + checkOffset + " " + checkCrc, StandardCharsets.UTF_8);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedAt = System.currentTimeMillis();
+    }
+}
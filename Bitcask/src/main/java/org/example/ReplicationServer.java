@@ -0,0 +1,41 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+
+// Leader side: accepts follower connections on server.replication.port, one per follower shard,
+// and runs a ReplicationSource for each on the executor.
+public class ReplicationServer implements Runnable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Thread thread;
+
+    public ReplicationServer(int port, ExecutorService executor) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.executor = executor;
+        this.thread = new Thread(this, "bitcask-replication");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        System.out.println("Replication listening on tcp port " + serverSocket.getLocalPort());
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(new ReplicationSource(socket));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
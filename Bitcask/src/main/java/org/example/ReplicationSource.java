@@ -0,0 +1,219 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Leader side of one follower shard: streams the shard's log, oldest segment first, then tails the
+// active segment as the appender syncs it.
+//
+// Handshake, follower to leader:
+//   [int MAGIC][int shardCount][int shard][int fileId][long offset][long checkOffset][int checkCrc]
+// fileId/offset is where the follower stopped, checkOffset/checkCrc the last record it got. It resumes
+// there if that record is still in place, otherwise (or with fileId -1) it gets RESET and the whole log.
+//
+// Frames, leader to follower:
+//   RESET      [byte]                                            drop everything, the whole log follows
+//   DATA       [byte][int fileId][long offset][int length][records]  whole records as they are on disk
+//   HEARTBEAT  [byte][long leaderTime]                           the follower has everything synced so far
+//   ERROR      [byte][utf message]
+//
+// Compaction of the shard is paused while sealed segments are being sent, their offsets have to stay
+// put until the follower moved past them. Tailing the active segment doesn't hold anything up.
+public class ReplicationSource implements Runnable {
+    static final int MAGIC = 0xB17C0001;
+    static final byte RESET = 1;
+    static final byte DATA = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte ERROR = 4;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final long HEARTBEAT_INTERVAL_MS = 50;
+
+    private final Socket socket;
+    private Worker engine;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private byte[] frame = new byte[READ_BUFFER_SIZE];
+    private boolean paused;
+
+    public ReplicationSource(Socket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        String follower = String.valueOf(socket.getRemoteSocketAddress());
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a Bitcask follower");
+            }
+            int shardCount = in.readInt();
+            int shard = in.readInt();
+            int fileId = in.readInt();
+            long offset = in.readLong();
+            long checkOffset = in.readLong();
+            int checkCrc = in.readInt();
+            if (shardCount != Shards.all().length || shard < 0 || shard >= shardCount) {
+                out.writeByte(ERROR);
+                out.writeUTF("The leader has " + Shards.all().length + " shards, the follower " + shardCount);
+                out.flush();
+                return;
+            }
+            engine = Shards.all()[shard];
+            System.out.println("Follower " + follower + " connected to shard " + shard + " at " + fileId + ":" + offset);
+
+            pause(true);
+            if (fileId < 0 || !canResume(fileId, offset, checkOffset, checkCrc)) {
+                out.writeByte(RESET);
+                fileId = nextFileId(-1);
+                offset = 0;
+            }
+            stream(out, fileId, offset);
+        } catch (IOException e) {
+            System.out.println("Follower " + follower + " disconnected: " + e.getMessage());
+        } finally {
+            pause(false);
+        }
+    }
+
+    private void stream(DataOutputStream out, int fileId, long offset) throws IOException {
+        FileChannel channel = null;
+        long lastHeartbeat = 0;
+        try {
+            while (true) {
+                // Checked before reading: once the id moved on, every byte of the segment is in the file.
+                boolean sealed = fileId < engine.fileId;
+                pause(sealed);
+                if (channel == null) {
+                    try {
+                        channel = FileChannel.open(Paths.get(engine.filePath + fileId), StandardOpenOption.READ);
+                    } catch (NoSuchFileException e) {
+                        if (!sealed) throw e;
+                        // Merged away before we got to it
+                        fileId = nextFileId(fileId);
+                        offset = 0;
+                        continue;
+                    }
+                }
+
+                int length = readRecords(channel, offset);
+                // Read short of the buffer: nothing past these records was in the file yet
+                boolean atEnd = buffer.position() < buffer.capacity();
+                if (length > 0) {
+                    out.writeByte(DATA);
+                    out.writeInt(fileId);
+                    out.writeLong(offset);
+                    out.writeInt(length);
+                    buffer.get(0, frame, 0, length);
+                    out.write(frame, 0, length);
+                    offset += length;
+                } else if (sealed) {
+                    channel.close();
+                    channel = null;
+                    fileId = nextFileId(fileId);
+                    offset = 0;
+                    continue;
+                }
+                if (!sealed && atEnd) {
+                    // Caught up with the active segment. Also after a DATA frame, under steady ingest
+                    // there's always new data and the follower would never hear it is current.
+                    long now = System.currentTimeMillis();
+                    if (now - lastHeartbeat >= HEARTBEAT_INTERVAL_MS) {
+                        out.writeByte(HEARTBEAT);
+                        out.writeLong(now);
+                        lastHeartbeat = now;
+                    }
+                }
+                out.flush();
+                if (length == 0) {
+                    synchronized (engine.appended) {
+                        engine.appended.wait(HEARTBEAT_INTERVAL_MS);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (channel != null) channel.close();
+        }
+    }
+
+    // Reads whatever whole records follow offset into buffer, returns their total size.
+    // A record still being written at the end of the active segment is left for the next round.
+    private int readRecords(FileChannel channel, long offset) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + buffer.position());
+            if (read <= 0) break;
+        }
+        int available = buffer.position();
+        int length = 0;
+        while (available - length >= Record.HEADER_SIZE) {
+            int size = Record.sizeAt(buffer, length);
+            if (size < 0) {
+                throw new IOException("Corrupt record in segment " + engine.filePath + " at " + (offset + length));
+            }
+            if (available - length < size) {
+                if (length == 0 && size > buffer.capacity()) {
+                    // A single record bigger than the buffer
+                    buffer = ByteBuffer.allocateDirect(size);
+                    frame = new byte[size];
+                    return readRecords(channel, offset);
+                }
+                break;
+            }
+            length += size;
+        }
+        return length;
+    }
+
+    // The follower's last record must still be at the same place with the same checksum, i.e. the
+    // segment wasn't rewritten by a compaction since.
+    private boolean canResume(int fileId, long offset, long checkOffset, int checkCrc) {
+        if (fileId > engine.fileId) return false;
+        try (FileChannel channel = FileChannel.open(Paths.get(engine.filePath + fileId), StandardOpenOption.READ)) {
+            if (offset > channel.size()) return false;
+            if (checkOffset < 0) return offset == 0;
+            ByteBuffer header = ByteBuffer.allocate(Record.HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, checkOffset + header.position()) < 0) return false;
+            }
+            return header.getInt(Record.CRC_OFFSET) == checkCrc && checkOffset + Record.sizeAt(header, 0) == offset;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Oldest segment after fileId, the active one if there is none.
+    private int nextFileId(int fileId) {
+        File[] files = Worker.getFilesFromFolder(engine.filePath);
+        if (files != null) {
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName());
+                if (id > fileId) return Math.min(id, engine.fileId);
+            }
+        }
+        return engine.fileId;
+    }
+
+    private void pause(boolean pause) {
+        if (engine == null || pause == paused) return;
+        if (pause) {
+            engine.compactor.pause();
+        } else {
+            engine.compactor.resume();
+        }
+        paused = pause;
+    }
+}
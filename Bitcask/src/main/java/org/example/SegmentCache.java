@@ -0,0 +1,111 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the sealed segments open as FileChannels in a bounded LRU so a lookup
+// only costs a positional read of the record instead of an open and a full file read.
+public class SegmentCache {
+    private static final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+    private final String filePath;
+    private final int maxOpenFiles;
+    private final LinkedHashMap<Integer, FileChannel> channels;
+
+    public SegmentCache(String filePath, int maxOpenFiles) {
+        this.filePath = filePath;
+        this.maxOpenFiles = maxOpenFiles;
+        // access order = true -> iteration order is least recently used first
+        this.channels = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+                if (size() > SegmentCache.this.maxOpenFiles) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private synchronized FileChannel channel(int fileId) throws IOException {
+        FileChannel channel = channels.get(fileId);
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(Paths.get(filePath + fileId), StandardOpenOption.READ);
+            channels.put(fileId, channel);
+        }
+        return channel;
+    }
+
+    // size is the whole record as kept in the KeyDir, see Record for the layout.
+    public byte[] read(int fileId, int offset, int size, long key) throws IOException {
+        try {
+            return readRecord(channel(fileId), fileId, offset, size, key);
+        } catch (ClosedChannelException e) {
+            // The channel got evicted by another reader while we were using it, open it again.
+            return readRecord(channel(fileId), fileId, offset, size, key);
+        }
+    }
+
+    private byte[] readRecord(FileChannel channel, int fileId, int offset, int size, long key) throws IOException {
+        // Read into a reusable direct buffer and verified in place, the value is only copied out once.
+        ByteBuffer record = readBuffers.get();
+        if (record.capacity() < size) {
+            record = ByteBuffer.allocateDirect(size);
+            if (size <= MAX_READ_BUFFER_SIZE) {
+                readBuffers.set(record);
+            }
+        }
+        record.clear().limit(size);
+        readFully(channel, record, offset);
+
+        if (Record.sizeAt(record, 0) != size || !Record.isIntact(record, 0, size)) {
+            throw new IOException("Corrupt record in segment " + fileId + " at offset " + offset);
+        }
+        if (key != Record.keyAt(record, 0)) {
+            throw new IOException("The key you provided not equal the key that has been found in the file.");
+        }
+
+        byte[] value = new byte[size - Record.HEADER_SIZE];
+        record.get(Record.HEADER_SIZE, value);
+        return value;
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment " + filePath + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    // Must be called whenever a segment file is deleted or rewritten under the same id.
+    public synchronized void evict(int fileId) {
+        FileChannel channel = channels.remove(fileId);
+        if (channel != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    public synchronized void clear() {
+        for (FileChannel channel : channels.values()) {
+            closeQuietly(channel);
+        }
+        channels.clear();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
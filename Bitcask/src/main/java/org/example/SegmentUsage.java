@@ -0,0 +1,92 @@
+package org.example;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Live and dead bytes per segment, kept up to date as writes supersede keys.
+// A put racing with a compaction swap can be counted against the wrong segment,
+// the numbers are recomputed exactly from the keydir on every startup.
+public class SegmentUsage {
+    public static final class Usage {
+        final AtomicLong live = new AtomicLong();
+        final AtomicLong dead = new AtomicLong();
+
+        public long getLive() {
+            return live.get();
+        }
+
+        public long getDead() {
+            return dead.get();
+        }
+
+        public long getTotal() {
+            return live.get() + dead.get();
+        }
+
+        public double getGarbageRatio() {
+            long total = getTotal();
+            return total == 0 ? 0 : Math.min(1.0, (double) getDead() / total);
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Usage> segments = new ConcurrentHashMap<>();
+
+    private Usage of(int fileId) {
+        return segments.computeIfAbsent(fileId, id -> new Usage());
+    }
+
+    public void addLive(int fileId, long bytes) {
+        of(fileId).live.addAndGet(bytes);
+    }
+
+    // A record of the segment got superseded.
+    public void supersede(int fileId, long bytes) {
+        Usage usage = of(fileId);
+        usage.live.addAndGet(-bytes);
+        usage.dead.addAndGet(bytes);
+    }
+
+    public void set(int fileId, long live, long dead) {
+        Usage usage = of(fileId);
+        usage.live.set(live);
+        usage.dead.set(dead);
+    }
+
+    public void remove(int fileId) {
+        segments.remove(fileId);
+    }
+
+    public Usage get(int fileId) {
+        return segments.get(fileId);
+    }
+
+    public Map<Integer, Usage> snapshot() {
+        return new HashMap<>(segments);
+    }
+
+    public long getLiveBytes() {
+        return segments.values().stream().mapToLong(Usage::getLive).sum();
+    }
+
+    public long getDeadBytes() {
+        return segments.values().stream().mapToLong(Usage::getDead).sum();
+    }
+
+    // Startup: whatever the keydir points at is live, the rest of each file is dead.
+    public void rebuild(KeyDir keyDir, File[] files) {
+        segments.clear();
+        if (files == null || files.length == 0) return;
+        // Indexed by file id, files is sorted so the last one has the highest
+        long[] live = new long[Integer.parseInt(files[files.length - 1].getName()) + 1];
+        keyDir.forEach((key, fileId, offset, size, timestamp) -> {
+            if (fileId < live.length) live[fileId] += size;
+        });
+        for (File file : files) {
+            int fileId = Integer.parseInt(file.getName());
+            set(fileId, live[fileId], Math.max(0, file.length() - live[fileId]));
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package org.example;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -12,78 +14,108 @@ import java.util.concurrent.Future;
 
 
 public class Server {
-    private static void handleClient(Socket socket, int numThreads) {
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-        List<Future<byte[]>> futures = new ArrayList<>();
-        List<byte[]> results = new ArrayList<>();
-
-        try (
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));)
-        {
-            String message;
-
-            while ((message = reader.readLine()) != null) {
-                if (message.isEmpty()) continue;
-
-                if (message.startsWith("w ") || message.startsWith("r ") || message.startsWith("a ")) {
-
-                    boolean expectsReply = !message.contains("--no-reply");
-                    String cleanedMessage = message.replace("--no-reply", "").trim();
-
-                    Future<byte[]> future = executor.submit(new Worker(cleanedMessage));
-
-                    if(expectsReply){
-                        futures.add(future);
-                    }
-                } else {
-                    System.err.println("Unrecognized message format: " + message);
-                }
-            }
-
-            for (Future<byte[]> future : futures) {
-                try {
-                    byte[] result = future.get();
-                    if (result != null) {
-                        writer.write(new String(result) + "\n");
-                        writer.flush();
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            executor.shutdown();
-            try { socket.close(); } catch (Exception ignored) {}
-        }
-    }
-
+    // Reads run on virtual threads, they mostly wait on positional reads. Writes don't need a thread at all.
+    private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
 
     public static void main(String args[]) throws IOException {
         Properties config = new Properties();
-        FileInputStream fis = new FileInputStream("/home/karim/Weather-Stations-Monitoring/Bitcask/src/main/resources/system.properties");
+        // A second process, e.g. a follower, can be started with its own properties file.
+        String configPath = args.length > 0 ? args[0] : "/home/karim/Weather-Stations-Monitoring/Bitcask/src/main/resources/system.properties";
+        FileInputStream fis = new FileInputStream(configPath);
         config.load(fis);
 
         int serverPort = Integer.parseInt(config.getProperty("server.port"));
         String logsPath = config.getProperty("server.logs");
         String hintPath = config.getProperty("server.hints");
-        int numThreads = Integer.parseInt(config.getProperty("server.threads"));
-
-        try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
+        int pipelineDepth = Integer.parseInt(config.getProperty("server.pipeline.depth", "1024"));
+        int ioThreads = Integer.parseInt(config.getProperty("server.io.threads", "2"));
+        int maxConnections = Integer.parseInt(config.getProperty("server.connections.max", "1024"));
+        int segmentSize = Integer.parseInt(config.getProperty("server.segment.size", "67108864"));
+        int writeBufferSize = Integer.parseInt(config.getProperty("server.write.buffer.size", "1048576"));
+        int maxOpenSegments = Integer.parseInt(config.getProperty("server.segments.open", "64"));
+        int keyDirCapacity = Integer.parseInt(config.getProperty("server.keydir.capacity", "1024"));
+        int recoveryThreads = Integer.parseInt(config.getProperty("server.recovery.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int maxWriteBatch = Integer.parseInt(config.getProperty("server.writes.batch", "256"));
+        int maxQueuedWrites = Integer.parseInt(config.getProperty("server.writes.queue", "8192"));
+        long maxCompactionBatch = Long.parseLong(config.getProperty("server.compaction.batch.bytes", "268435456"));
+        double compactionMBps = Double.parseDouble(config.getProperty("server.compaction.mbps", "50"));
+        long compactionIntervalMs = Long.parseLong(config.getProperty("server.compaction.interval.ms", "5000"));
+        double minGarbageRatio = Double.parseDouble(config.getProperty("server.compaction.garbage.ratio", "0.5"));
+        double smallSegmentRatio = Double.parseDouble(config.getProperty("server.compaction.small.ratio", "0.25"));
+        long minReclaimBytes = Long.parseLong(config.getProperty("server.compaction.min.reclaim.bytes", "16777216"));
+        Durability durability = Durability.valueOf(config.getProperty("server.durability", "group").toUpperCase());
+        long groupWindowMicros = Long.parseLong(config.getProperty("server.durability.group.window.us", "500"));
+        long fsyncIntervalMs = Long.parseLong(config.getProperty("server.durability.interval.ms", "1000"));
+        long cacheBytes = Long.parseLong(config.getProperty("server.cache.bytes", "67108864"));
+        int configuredShards = Integer.parseInt(config.getProperty("server.shards",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        boolean follower = config.getProperty("server.role", "leader").equalsIgnoreCase("follower");
+        int replicationPort = Integer.parseInt(config.getProperty("server.replication.port", "0"));
+        String leader = config.getProperty("server.replication.leader", "localhost:5001");
+        long maxLagMs = Long.parseLong(config.getProperty("server.replication.max.lag.ms", "1000"));
+        int metricsPort = Integer.parseInt(config.getProperty("server.metrics.port", "9404"));
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(serverPort));
             System.out.println("Bitcask Server started. Listening on tcp port " + serverPort);
 
-            Worker worker = new Worker(0, logsPath, hintPath);
+            int shardCount = Shards.count(logsPath, configuredShards);
+            // Shards recover in parallel, the keydir capacity, recovery threads and cache are split between them.
+            IoThrottle compactionThrottle = new IoThrottle(compactionMBps);
+            Worker[] shards = new Worker[shardCount];
+            List<Future<Worker>> opening = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                int shard = i;
+                opening.add(executor.submit(() -> new Worker(shard, Shards.folder(logsPath, shard, shardCount),
+                        Shards.folder(hintPath, shard, shardCount), segmentSize, writeBufferSize, maxOpenSegments,
+                        Math.max(1, keyDirCapacity / shardCount), Math.max(1, recoveryThreads / shardCount), maxWriteBatch,
+                        maxQueuedWrites, maxCompactionBatch, compactionThrottle, durability, groupWindowMicros,
+                        fsyncIntervalMs, cacheBytes / shardCount)));
+            }
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = opening.get(i).get();
+            }
+            Shards.open(shards);
+
+            if (follower) {
+                // Reads only, the leader's log is applied to every shard as it grows.
+                for (Worker shard : shards) {
+                    shard.maxLagMs = maxLagMs;
+                    shard.readOnly = true;
+                    new Replica(shard, leader, shardCount).start();
+                }
+            } else if (replicationPort > 0) {
+                new ReplicationServer(replicationPort, executor).start();
+            }
+
+            Metrics.serve(metricsPort, executor);
+
+            for (Worker shard : shards) {
+                new CompactionScheduler(shard, compactionIntervalMs, minGarbageRatio, smallSegmentRatio,
+                        minReclaimBytes, maxCompactionBatch).start();
+            }
 
-            // Poll every 5 seconds (5000 ms)
-            LogPathTracker tracker = new LogPathTracker(logsPath, 5000, 10);
-            tracker.start();
+            EventLoop[] loops = new EventLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new EventLoop("bitcask-io-" + i, executor, pipelineDepth, Metrics.connections::decrementAndGet);
+                loops[i].start();
+            }
 
+            // Accepts on this thread and spreads the connections over the event loops.
+            int next = 0;
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket, numThreads)).start();
+                SocketChannel clientChannel = serverChannel.accept();
+                if (Metrics.connections.incrementAndGet() > maxConnections) {
+                    Metrics.connections.decrementAndGet();
+                    System.err.println("Connection limit of " + maxConnections + " reached, refusing " + clientChannel.getRemoteAddress());
+                    clientChannel.close();
+                    continue;
+                }
+                clientChannel.configureBlocking(false);
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(clientChannel);
+                next = (next + 1) % ioThreads;
             }
 
         } catch (Exception e) {
@@ -0,0 +1,165 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// The engines of this process. Every key belongs to one shard, picked from a hash of the key, so
+// each shard appends, syncs, compacts and locks on its own and writes scale with the cores.
+//
+// With a single shard the engine lives directly in the logs and hints folders like it always did.
+// With more, shard i lives in "shard-i" subfolders. The shard count is stored next to the data,
+// since changing it would send keys to shards that don't hold them: an existing store keeps the count
+// it was created with, whatever server.shards says.
+final class Shards {
+    static final String COUNT_FILE = "shards";
+
+    private static Worker[] shards;
+
+    private Shards() {}
+
+    static String folder(String path, int shard, int count) {
+        return count == 1 ? path : path + "shard-" + shard + "/";
+    }
+
+    // The shard count of the data on disk, the configured one only applies to an empty folder.
+    static int count(String logsPath, int configured) throws IOException {
+        Path countFile = Paths.get(logsPath + COUNT_FILE);
+        int count;
+        if (Files.exists(countFile)) {
+            count = Integer.parseInt(Files.readString(countFile, StandardCharsets.UTF_8).trim());
+        } else {
+            File[] segments = Worker.getFilesFromFolder(logsPath);
+            // Data from before sharding is a single shard
+            count = segments != null && segments.length > 0 ? 1 : configured;
+        }
+        if (count != configured) {
+            System.out.println("The data in " + logsPath + " is split into " + count + " shards, ignoring server.shards="
+                    + configured);
+        }
+        new File(logsPath).mkdirs();
+        Files.writeString(countFile, String.valueOf(count), StandardCharsets.UTF_8);
+        return count;
+    }
+
+    static void open(Worker[] engines) {
+        shards = engines;
+    }
+
+    static Worker[] all() {
+        return shards;
+    }
+
+    static Worker of(long key) {
+        long hash = FrequencySketch.spread(key);
+        return shards[(int) Long.remainderUnsigned(hash, shards.length)];
+    }
+
+    static int maxRecordSize() {
+        return shards[0].segmentSize;
+    }
+
+    static byte[] get(long key) {
+        return of(key).get(key);
+    }
+
+    static CompletableFuture<Void> put(long key, byte[] value) {
+        return of(key).put(key, value);
+    }
+
+    static CompletableFuture<Void> delete(long key) {
+        return of(key).delete(key);
+    }
+
+    // One appender batch per shard involved, acknowledged once all of them are synced.
+    static CompletableFuture<Void> putAll(long[] keys, byte[][] values) {
+        if (shards.length == 1) {
+            return shards[0].putAll(keys, values);
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            int count = 0;
+            for (long key : keys) {
+                if (of(key) == shards[s]) count++;
+            }
+            if (count == 0) continue;
+            long[] shardKeys = new long[count];
+            byte[][] shardValues = new byte[count][];
+            for (int i = 0, n = 0; i < keys.length; i++) {
+                if (of(keys[i]) == shards[s]) {
+                    shardKeys[n] = keys[i];
+                    shardValues[n++] = values[i];
+                }
+            }
+            writes.add(shards[s].putAll(shardKeys, shardValues));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    static void getAll(long[] keys, List<CompletableFuture<byte[]>> results) {
+        if (shards.length == 1) {
+            shards[0].getAll(keys, results);
+            return;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            int count = 0;
+            for (long key : keys) {
+                if (of(key) == shards[s]) count++;
+            }
+            if (count == 0) continue;
+            long[] shardKeys = new long[count];
+            List<CompletableFuture<byte[]>> shardResults = new ArrayList<>(count);
+            for (int i = 0, n = 0; i < keys.length; i++) {
+                if (of(keys[i]) == shards[s]) {
+                    shardKeys[n++] = keys[i];
+                    shardResults.add(results.get(i));
+                }
+            }
+            shards[s].getAll(shardKeys, shardResults);
+        }
+    }
+
+    // Every shard holds part of the range, their sorted results are merged.
+    static List<Worker.KeyValue> scan(long from, long to, int limit) {
+        if (shards.length == 1) {
+            return shards[0].scan(from, to, limit);
+        }
+        List<Worker.KeyValue> result = new ArrayList<>();
+        for (Worker shard : shards) {
+            result.addAll(shard.scan(from, to, limit));
+        }
+        result.sort(Comparator.comparingLong(Worker.KeyValue::key));
+        limit = Math.min(limit, Worker.MAX_SCAN_RESULTS);
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    static void compact() {
+        for (Worker shard : shards) {
+            shard.compactor.compact();
+        }
+    }
+
+    static String cacheStats() {
+        long hits = 0, misses = 0, evictions = 0, rejections = 0, entries = 0, bytes = 0, capacity = 0;
+        for (Worker shard : shards) {
+            ValueCache cache = shard.cache;
+            hits += cache.getHits();
+            misses += cache.getMisses();
+            evictions += cache.getEvictions();
+            rejections += cache.getRejections();
+            entries += cache.getEntries();
+            bytes += cache.getBytes();
+            capacity += cache.getCapacity();
+        }
+        double hitRatio = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        return String.format("cache hits=%d misses=%d hitRatio=%.3f evictions=%d rejections=%d entries=%d bytes=%d capacity=%d",
+                hits, misses, hitRatio, evictions, rejections, entries, bytes, capacity);
+    }
+}
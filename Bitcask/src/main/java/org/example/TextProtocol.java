@@ -0,0 +1,162 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// Newline terminated commands: "w <key> <value>", "r <key>" and "d <key>", any of them optionally
+// followed by --no-reply. Every request that expects a reply gets exactly one line back, an empty one
+// when there is nothing to return, so a pipelining client can match them up.
+//
+// Batch commands:
+//   "mr <key> <key> ..."                    one line per key, in order
+//   "mw <key> <value>\t<key> <value> ..."   one line once every pair is synced
+//   "s <from> <to> [limit]"                 a "<key> <value>" line per entry in the range, then an empty line
+//
+// Snapshot export, binary format if the file name ends in .bin, CSV otherwise:
+//   "a <path> <file>"                       the export streamed back on the connection, then an empty line
+//   "x <path> <file>"                       the export written to that file on the server, replies the entry count
+//
+// "i" replies one line of value cache statistics, "stats" the metrics in the Prometheus text format
+// followed by an empty line.
+final class TextProtocol implements Codec {
+    static final TextProtocol INSTANCE = new TextProtocol();
+    private static final Set<String> COMMANDS = Set.of("w", "r", "d", "mr", "mw", "s", "a", "x", "i", "stats");
+
+    private TextProtocol() {}
+
+    @Override
+    public boolean decode(Connection connection, ByteBuffer in) throws IOException {
+        int start = in.position();
+        int end = -1;
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (in.remaining() == in.capacity()) {
+                // A line longer than the whole buffer
+                connection.expect(in.capacity() * 2);
+            }
+            return false;
+        }
+        int length = end - start;
+        if (length > 0 && in.get(end - 1) == '\r') length--;
+        byte[] line = new byte[length];
+        in.get(start, line);
+        in.position(end + 1);
+
+        String message = new String(line, StandardCharsets.UTF_8);
+        if (message.isEmpty()) return true;
+
+        String[] words = message.split(" ", 2);
+        boolean expectsReply = !message.contains("--no-reply");
+        if (!COMMANDS.contains(words[0])) {
+            // Gets its empty reply line like any failed request, so the later replies stay in place
+            connection.submit(CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Unrecognized message format: " + message)), 0, (byte) 0, expectsReply);
+            return true;
+        }
+        String cleanedMessage = message.replace("--no-reply", "").trim();
+        String[] requestParts;
+        try {
+            switch (words[0]) {
+                case "w" -> {
+                    requestParts = cleanedMessage.split(" ", 3);
+                    long key = Long.parseLong(requestParts[1]);
+                    byte[] value = requestParts[2].getBytes(StandardCharsets.UTF_8);
+                    connection.write(Shards.put(key, value), 0, BinaryProtocol.PUT, expectsReply);
+                }
+                case "r" -> {
+                    requestParts = cleanedMessage.split(" ", 2);
+                    long key = Long.parseLong(requestParts[1]);
+                    connection.submit(connection.read(key), 0, BinaryProtocol.GET, expectsReply);
+                }
+                case "d" -> {
+                    requestParts = cleanedMessage.split(" ", 2);
+                    long key = Long.parseLong(requestParts[1]);
+                    connection.write(Shards.delete(key), 0, BinaryProtocol.DELETE, expectsReply);
+                }
+                case "mr" -> {
+                    requestParts = cleanedMessage.split(" +");
+                    if (!connection.hasRoom(requestParts.length - 1)) {
+                        // Decoded again once the pipeline has room for all of its replies
+                        in.position(start);
+                        return false;
+                    }
+                    long[] keys = new long[requestParts.length - 1];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = Long.parseLong(requestParts[i + 1]);
+                    }
+                    connection.readAll(keys, 0, BinaryProtocol.MGET, expectsReply);
+                }
+                case "mw" -> {
+                    requestParts = cleanedMessage.substring(3).split("\t");
+                    long[] keys = new long[requestParts.length];
+                    byte[][] values = new byte[requestParts.length][];
+                    for (int i = 0; i < keys.length; i++) {
+                        String[] pair = requestParts[i].trim().split(" ", 2);
+                        keys[i] = Long.parseLong(pair[0]);
+                        values[i] = pair[1].getBytes(StandardCharsets.UTF_8);
+                    }
+                    connection.write(Shards.putAll(keys, values), 0, BinaryProtocol.MPUT, expectsReply);
+                }
+                case "s" -> {
+                    requestParts = cleanedMessage.split(" +");
+                    long from = Long.parseLong(requestParts[1]);
+                    long to = Long.parseLong(requestParts[2]);
+                    int limit = requestParts.length > 3 ? Integer.parseInt(requestParts[3]) : Worker.MAX_SCAN_RESULTS;
+                    connection.submit(connection.scan(from, to, limit), 0, BinaryProtocol.SCAN, expectsReply);
+                }
+                case "a" -> {
+                    requestParts = cleanedMessage.split(" ", 3);
+                    Export.Format format = Export.formatOf(requestParts[requestParts.length - 1]);
+                    connection.submit(connection.export(format), 0, BinaryProtocol.EXPORT, expectsReply);
+                }
+                default -> connection.submit(connection.async(new Command(cleanedMessage)::call), 0, (byte) 0, expectsReply);
+            }
+        } catch (RuntimeException e) {
+            // Still takes its place in the reply order
+            connection.submit(CompletableFuture.failedFuture(e), 0, (byte) 0, expectsReply);
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int encodedSize(byte opcode, byte status, Object result) {
+        if (opcode == BinaryProtocol.SCAN && result != null) {
+            int size = 1;
+            for (Worker.KeyValue entry : (List<Worker.KeyValue>) result) {
+                size += Long.toString(entry.key()).length() + 1 + entry.value().length + 1;
+            }
+            return size;
+        }
+        return (result != null ? ((byte[]) result).length : 0) + 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void encode(ByteBuffer out, int requestId, byte opcode, byte status, Object result) {
+        if (opcode == BinaryProtocol.SCAN && result != null) {
+            for (Worker.KeyValue entry : (List<Worker.KeyValue>) result) {
+                out.put(Long.toString(entry.key()).getBytes(StandardCharsets.US_ASCII));
+                out.put((byte) ' ');
+                out.put(entry.value());
+                out.put((byte) '\n');
+            }
+        } else if (opcode == BinaryProtocol.EXPORT && status == BinaryProtocol.OK) {
+            // A chunk of the export, it carries its own line breaks
+            out.put((byte[]) result);
+            return;
+        } else if (result != null) {
+            out.put((byte[]) result);
+        }
+        out.put((byte) '\n');
+    }
+}
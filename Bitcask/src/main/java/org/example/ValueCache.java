@@ -0,0 +1,209 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size bounded cache of values in front of the segment reads, for the few stations that get polled
+// over and over.
+//
+// An entry remembers the location it was read from and only hits for that same (fileId, offset), so
+// a value can never be served once the keydir points somewhere else. Writes and compaction moves
+// still drop the entry right away to give the memory back.
+//
+// Eviction is CLOCK: a hit sets the entry's reference bit, the hand gives referenced entries a second
+// chance and evicts the first one without it. Admission is TinyLFU: a new value only gets in if its
+// key was asked for more often than the key of the entry it would evict, so a scan or an export of
+// cold keys can't flush the hot ones. Frequencies are counted in a small count-min sketch that is
+// halved periodically, so keys that cooled down lose their advantage.
+public class ValueCache {
+    private static final int SHARDS = 16;
+    // Values bigger than this share of a shard are never worth the room
+    private static final double MAX_ENTRY_RATIO = 0.1;
+
+    private static final class Node {
+        final long key;
+        final int fileId;
+        final int offset;
+        final byte[] value;
+        boolean referenced;
+        boolean removed;
+
+        Node(long key, int fileId, int offset, byte[] value) {
+            this.key = key;
+            this.fileId = fileId;
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    private static final class Shard {
+        final HashMap<Long, Node> nodes = new HashMap<>();
+        // The clock, the hand is always at the head
+        final ArrayDeque<Node> clock = new ArrayDeque<>();
+        final FrequencySketch sketch;
+        long bytes;
+
+        Shard(int sketchWidth) {
+            this.sketch = new FrequencySketch(sketchWidth);
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long shardCapacity;
+    private final long capacity;
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    public ValueCache(long capacityBytes) {
+        this.capacity = capacityBytes;
+        this.shardCapacity = capacityBytes / SHARDS;
+        // Roughly one counter per cached entry of a few hundred bytes
+        int sketchWidth = (int) Math.min(1 << 16, Math.max(256, Long.highestOneBit(Math.max(1, shardCapacity / 128))));
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(sketchWidth);
+        }
+    }
+
+    private Shard shard(long key) {
+        return shards[(int) (FrequencySketch.spread(key) >>> 60)];
+    }
+
+    // The cached value of the record at that location, or null.
+    public byte[] get(long key, int fileId, int offset) {
+        if (capacity <= 0) return null;
+        Shard shard = shard(key);
+        synchronized (shard) {
+            shard.sketch.increment(key);
+            Node node = shard.nodes.get(key);
+            if (node != null && node.fileId == fileId && node.offset == offset) {
+                node.referenced = true;
+                hits.incrementAndGet();
+                return node.value;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Offers a value just read from disk, it may be turned down by the admission policy.
+    public void put(long key, int fileId, int offset, byte[] value) {
+        if (capacity <= 0 || value.length > shardCapacity * MAX_ENTRY_RATIO) return;
+        Shard shard = shard(key);
+        synchronized (shard) {
+            Node old = shard.nodes.get(key);
+            if (old != null) {
+                remove(shard, old);
+            }
+            int frequency = shard.sketch.frequency(key);
+            while (shard.bytes + value.length > shardCapacity) {
+                Node victim = nextVictim(shard);
+                if (frequency <= shard.sketch.frequency(victim.key)) {
+                    rejections.incrementAndGet();
+                    return;
+                }
+                shard.clock.poll();
+                remove(shard, victim);
+                evictions.incrementAndGet();
+            }
+            Node node = new Node(key, fileId, offset, value);
+            shard.nodes.put(key, node);
+            shard.clock.add(node);
+            shard.bytes += value.length;
+        }
+    }
+
+    // Called whenever the key gets a new location: written, deleted or moved by a compaction.
+    public void invalidate(long key) {
+        if (capacity <= 0) return;
+        Shard shard = shard(key);
+        synchronized (shard) {
+            Node node = shard.nodes.get(key);
+            if (node != null) {
+                remove(shard, node);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.nodes.clear();
+                shard.clock.clear();
+                shard.bytes = 0;
+            }
+        }
+    }
+
+    // Moves the hand to the first entry without a reference bit, leaves it at the head of the clock.
+    private static Node nextVictim(Shard shard) {
+        while (true) {
+            Node node = shard.clock.peek();
+            if (node.removed) {
+                shard.clock.poll();
+            } else if (node.referenced) {
+                node.referenced = false;
+                shard.clock.add(shard.clock.poll());
+            } else {
+                return node;
+            }
+        }
+    }
+
+    // Removed nodes stay in the clock until the hand passes them.
+    private static void remove(Shard shard, Node node) {
+        if (node.removed) return;
+        node.removed = true;
+        shard.nodes.remove(node.key);
+        shard.bytes -= node.value.length;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getEntries() {
+        long entries = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                entries += shard.nodes.size();
+            }
+        }
+        return entries;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
@@ -3,56 +3,124 @@ package org.example;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class Worker implements Callable<byte[]> {
-    static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
-    static HashMap<Long,ValueEntry> inMemory;
-    static HashMap<Long,Integer> hintMap;
-    static ByteBuffer buffer;
-    static int fileId;
-    static String filePath;
-    static String hintPath;
-    static int maxBufferSize;
-    static int keySize;
-    static int valueSize;
-    static int offsetSize;
-    static int startCompactionIdx;
-    private String request;
-
-    public Worker(int fileId, String filePath, String hintPath) throws IOException {
-        maxBufferSize = 8192;
-        hintMap = new HashMap<>();
-        buffer = ByteBuffer.allocate(maxBufferSize);
-        keySize = 8;
-        valueSize = 4;
-        offsetSize = 4;
-        Worker.fileId = fileId;
-        Worker.filePath = filePath;
-        Worker.hintPath = hintPath;
-        inMemory = getInMemory();
+// One Bitcask engine: its own directory, active segment, appender, keydir, lock and compactor.
+// Shards runs one of them per shard and routes every key to the same one.
+public class Worker {
+    static final ThreadLocal<KeyDir.Entry> entries = ThreadLocal.withInitial(KeyDir.Entry::new);
+    static final int MAX_SCAN_RESULTS = 10000;
+    static final int MAX_PROBED_RANGE = 65536;
+    static final int keySize = 8;
+    static final int valueSize = 4;
+    static final int offsetSize = 4;
+    static final int timestampSize = 8;
+    // Key, Offset, Size, Timestamp
+    static final int hintEntrySize = keySize + offsetSize + valueSize + timestampSize;
+    // Record version of the segments in the folder, see getInMemory
+    static final String FORMAT_FILE = "format";
+
+    final int shard;
+    // Appends and reads don't take it, only a compaction swap locks out readers.
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // Time spent waiting for the lock, see lockRead() and lockWrite()
+    final LongAdder lockWaitNanos = new LongAdder();
+    KeyDir inMemory;
+    KeyDir hintMap;
+    // Reusable direct buffers, records wait in writeBuffer until the next sync
+    ByteBuffer writeBuffer;
+    ByteBuffer hintBuffer;
+    volatile FileChannel activeChannel;
+    // Size of the active segment, including what is still in writeBuffer
+    long activeSize;
+    Durability durability;
+    volatile int fileId;
+    // Segments below it are sealed and every record in them is in the keydir. A batch can rotate
+    // before it is published, so this trails fileId until the appender published that batch.
+    // Compaction only ever picks segments below it.
+    volatile int publishedFileId;
+    final String filePath;
+    final String hintPath;
+    final int segmentSize;
+    SegmentCache segments;
+    ValueCache cache;
+    Compactor compactor;
+    SegmentUsage usage;
+    Appender appender;
+    // Notified after every appender batch, replication sources wait on it for new records
+    final Object appended = new Object();
+    // Set on a follower: writes come from the leader only, reads fail once it lags too far behind
+    volatile boolean readOnly;
+    volatile long maxLagMs;
+    // When the follower last heard from the leader that it has everything
+    volatile long caughtUpAt;
+    // Set when a failed batch couldn't be taken back, the segments may hold records no writer was
+    // told about. No more writes until a restart, which recovers whatever made it to disk.
+    volatile boolean broken;
+    // Only used by the appender thread
+    private final KeyDir.Entry superseded = new KeyDir.Entry();
+    // Undo log of the batch being written: where it started and, three longs per write, the key and
+    // the hint entry it replaced (offset << 32 | size, timestamp), 0 if the key had none.
+    private int batchFileId;
+    private long batchSize;
+    private long[] batchHints = new long[48];
+    private int batchHintCount;
+
+    public Worker(int shard, String filePath, String hintPath, int segmentSize, int writeBufferSize,
+                  int maxOpenSegments, int keyDirCapacity, int recoveryThreads, int maxWriteBatch, int maxQueuedWrites,
+                  long maxCompactionBatch, IoThrottle compactionThrottle,
+                  Durability durability, long groupWindowMicros, long fsyncIntervalMs, long cacheBytes) throws IOException {
+        long start = System.nanoTime();
+        this.shard = shard;
+        this.segmentSize = segmentSize;
+        this.filePath = filePath;
+        this.hintPath = hintPath;
+        this.durability = durability;
+        new File(filePath).mkdirs();
+        new File(hintPath).mkdirs();
+        writeBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+        hintBuffer = ByteBuffer.allocateDirect(64 * 1024 / hintEntrySize * hintEntrySize);
+        hintMap = new KeyDir(1024);
+        fileId = 0;
+        segments = new SegmentCache(filePath, maxOpenSegments);
+        cache = new ValueCache(cacheBytes);
+        compactor = new Compactor(this, maxCompactionBatch, compactionThrottle);
+        compactor.recover();
+        inMemory = getInMemory(keyDirCapacity, recoveryThreads);
+        Files.writeString(Paths.get(filePath + FORMAT_FILE), String.valueOf(Record.VERSION), StandardCharsets.UTF_8);
+        usage = new SegmentUsage();
+        usage.rebuild(inMemory, getFilesFromFolder(filePath));
+        openActiveSegment();
+        publishedFileId = fileId;
+        appender = new Appender(this, maxWriteBatch, maxQueuedWrites, durability, groupWindowMicros, fsyncIntervalMs);
+        appender.start();
+        System.out.println("Bitcask shard " + shard + " ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 
-    public Worker(String request){
-        this.request = request;
-    }
-
-    private File[] getFilesFromFolder(String path){
+    // Segment and hint files only, merge leftovers like "12.compact" are skipped.
+    static File[] getFilesFromFolder(String path){
         File[] files = null;
         File folder = new File(path);
-        if(folder.isDirectory()){
-            files = folder.listFiles();
-        }
 
         // Ensure it's a directory
         if (folder.isDirectory()) {
-            files = folder.listFiles();
+            files = folder.listFiles((dir, name) -> name.chars().allMatch(Character::isDigit));
 
             if (files != null) {
                 Arrays.sort(files, Comparator.comparingInt(f -> Integer.parseInt(f.getName())));
@@ -66,315 +134,478 @@ public class Worker implements Callable<byte[]> {
         return files;
     }
 
-    private HashMap<Long,ValueEntry> getInMemory() throws IOException {
-        File[] hintFiles = getFilesFromFolder(hintPath);
-        if(hintFiles == null || hintFiles.length == 0 )
-            return new HashMap<>();
+    // Hint files are loaded in parallel, then merged in file id order so later segments overwrite older entries.
+    private KeyDir getInMemory(int keyDirCapacity, int recoveryThreads) throws IOException {
+        long start = System.nanoTime();
+        File[] segmentFiles = getFilesFromFolder(filePath);
+        if(segmentFiles == null || segmentFiles.length == 0 )
+            return new KeyDir(keyDirCapacity);
+
+        // Sized up front from the hint files, so the keydir doesn't rehash while loading.
+        long hintEntries = 0;
+        for(File segment: segmentFiles){
+            hintEntries += new File(hintPath + segment.getName()).length() / hintEntrySize;
+        }
+        KeyDir map = new KeyDir((int) Math.min(Math.max(keyDirCapacity, hintEntries), Integer.MAX_VALUE / 16));
+
+        // Decided once for the whole store. Stores from before the versioned records have no format
+        // file, it says 0 while they are being converted.
+        Path formatFile = Paths.get(filePath + FORMAT_FILE);
+        boolean legacy = Files.exists(formatFile)
+                ? Integer.parseInt(Files.readString(formatFile, StandardCharsets.UTF_8).trim()) == 0
+                : HintLoader.isLegacyStore(segmentFiles);
+        if(legacy){
+            Files.writeString(formatFile, "0", StandardCharsets.UTF_8);
+        }
 
-        HashMap<Long, ValueEntry> map = new HashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(recoveryThreads);
         int fileId = 0;
-        for(File file: hintFiles){
-            ByteBuffer byteBuffer = readFileToByteBuffer(file);
-            fileId = Integer.parseInt(file.getName());
-            while(byteBuffer.hasRemaining()){
-                long key = byteBuffer.getLong();
-                int offset = byteBuffer.getInt();
-                map.put(key, new ValueEntry(offset, fileId));
+        try {
+            List<Future<HintLoader>> loads = new ArrayList<>(segmentFiles.length);
+            for(File segment: segmentFiles){
+                int id = Integer.parseInt(segment.getName());
+                boolean last = segment == segmentFiles[segmentFiles.length - 1];
+                loads.add(pool.submit(new HintLoader(id, segment, new File(hintPath + id), legacy, last)));
             }
+            for(int i = 0; i < loads.size(); i++){
+                HintLoader load = loads.get(i).get();
+                loads.set(i, null);
+                fileId = load.fileId;
+                KeyDir hints = load.scanned ? new KeyDir(load.count) : null;
+                for(int e = 0; e < load.count; e++){
+                    if(load.isTombstone(e)){
+                        map.remove(load.key(e), null);
+                    } else {
+                        map.put(load.key(e), fileId, load.offset(e), load.size(e), load.timestamp(e));
+                    }
+                    if(hints != null){
+                        hints.put(load.key(e), fileId, load.offset(e), load.size(e), load.timestamp(e));
+                    }
+                }
+                if(hints != null){
+                    // So the next startup doesn't have to scan it again.
+                    writeHintMapToDisk(hints, String.valueOf(fileId), hintPath);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the keydir");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException cause) throw cause;
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
-        Worker.fileId = fileId + 1;
-        System.out.println("Bitcask InMemory has been read correctly.");
+
+        this.fileId = fileId + 1;
+        System.out.println("Bitcask InMemory of shard " + shard + " has been read correctly: " + map.size() + " keys from "
+                + segmentFiles.length + " segments in " + (System.nanoTime() - start) / 1_000_000 + " ms");
 
         return map;
     }
 
-    private void writeToDisk(ByteBuffer byteBuffer, String fileId, String path){
-        // Flip the buffer before writing (prepare for reading)
+    private void openActiveSegment() throws IOException {
+        activeChannel = FileChannel.open(Paths.get(filePath + fileId),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        activeSize = 0;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer byteBuffer) throws IOException {
         byteBuffer.flip();
+        while(byteBuffer.hasRemaining()){
+            channel.write(byteBuffer);
+        }
+        byteBuffer.clear();
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(path + fileId);
-             FileChannel channel = fos.getChannel()) {
+    // Writes what the appender added since the last sync, forces it in group commit mode.
+    // Only called from the appender thread.
+    void sync() throws IOException {
+        writeFully(activeChannel, writeBuffer);
+        if(durability == Durability.GROUP){
+            activeChannel.force(false);
+        }
+    }
 
-            channel.write(byteBuffer);
-            System.out.println("Data written to disk successfully.");
+    // The old segment stays readable from disk, so rotating never has to lock out readers.
+    private void rotate() throws IOException {
+        writeFully(activeChannel, writeBuffer);
+        if(durability != Durability.NONE){
+            activeChannel.force(false);
+        }
+        activeChannel.close();
+        writeHintMapToDisk(hintMap, String.valueOf(fileId) , hintPath);
+        fileId += 1;
+        openActiveSegment();
+    }
 
-            // Clear the buffer.
-            byteBuffer.clear();
+    // Interval durability timer.
+    void forceActiveSegment(){
+        try {
+            activeChannel.force(false);
+        } catch (ClosedChannelException ignored) {
+            // Rotated meanwhile, the rotation forced it already.
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void writeHintMapToDisk(HashMap<Long, Integer> hintMap, String fileId, String path){
-        // Hint Map ---> Key, Offset
+    private void writeHintMapToDisk(KeyDir hintMap, String fileId, String path) throws IOException {
+        // Hint Map ---> Key, Offset, Size, Timestamp
 
-        // key , offset
+        // key , offset, size, timestamp
         // and get the file id from the hint file name when recreating the hashmap.
-        ByteBuffer hintBuffer = ByteBuffer.allocate(maxBufferSize);
-        for(Map.Entry<Long, Integer> entry : hintMap.entrySet()){
-            long key = entry.getKey();
-            int offset = entry.getValue();
-
-            hintBuffer.putLong(key);
-
-            hintBuffer.putInt(offset);
+        // Streamed through hintBuffer, so a segment can hold any number of keys.
+        try (FileChannel channel = FileChannel.open(Paths.get(path + fileId),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            hintMap.forEach((key, entryFileId, offset, size, timestamp) -> {
+                try {
+                    if(hintBuffer.remaining() < hintEntrySize){
+                        writeFully(channel, hintBuffer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                hintBuffer.putLong(key);
+                hintBuffer.putInt(offset);
+                hintBuffer.putInt(size);
+                hintBuffer.putLong(timestamp);
+            });
+            writeFully(channel, hintBuffer);
+            if(durability != Durability.NONE){
+                channel.force(true);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            hintBuffer.clear();
         }
 
         System.out.println("Saving Hint Map in File " + fileId);
-        writeToDisk(hintBuffer, fileId, path);
-
         hintMap.clear();
     }
 
-    private void writeRequest(long key, String value){
-        lock.writeLock().lock();  // Blocks all readers and other writers
-        try {
-            // Value Size, Key, Value
-            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
-
-            int entrySize = valueBytes.length + keySize + valueSize;
-
-            if(entrySize + buffer.position() > maxBufferSize){
-                writeToDisk(buffer, String.valueOf(fileId), filePath);
-                writeHintMapToDisk(hintMap, String.valueOf(fileId) , hintPath);
-                fileId += 1;
+    // Only ever called from the appender thread, which owns writeBuffer, activeChannel, hintMap and fileId.
+    // The record is not visible to readers until the appender publishes it after the sync.
+    void writeRequest(Appender.PendingWrite write) throws IOException {
+        long key = write.key;
+        byte[] valueBytes = write.value;
+        // Replicated records keep the leader's timestamp
+        long timestamp = write.timestamp != 0 ? write.timestamp : System.currentTimeMillis();
+        byte flags = write.tombstone ? Record.TOMBSTONE : 0;
+        // Header, Value
+        int entrySize = Record.HEADER_SIZE + valueBytes.length;
+
+        // A record bigger than a whole segment gets a segment of its own.
+        if(activeSize > 0 && activeSize + entrySize > segmentSize){
+            rotate();
+            if(batchHintCount == 0){
+                // Nothing of the batch in the sealed segment, it can still be taken back
+                batchFileId = fileId;
+                batchSize = 0;
             }
-            inMemory.put(key, new ValueEntry(buffer.position(), fileId));
-            hintMap.put(key, buffer.position());
-
-            // Add Value Size to the buffer with size long -> valueSize = 8
-            buffer.putInt(valueBytes.length);
+        }
+        int offset = (int) activeSize;
 
-            // Add the key to the buffer with size long -> keySize = 8
-            buffer.putLong(key);
+        if(entrySize > writeBuffer.remaining()){
+            writeFully(activeChannel, writeBuffer);
+        }
+        if(entrySize > writeBuffer.capacity()){
+            ByteBuffer header = ByteBuffer.allocate(Record.HEADER_SIZE);
+            Record.putHeader(header, key, timestamp, flags, valueBytes.length);
+            header.putInt(Record.CRC_OFFSET, Record.checksum(header, valueBytes));
+            header.flip();
+            ByteBuffer[] record = { header, ByteBuffer.wrap(valueBytes) };
+            while(record[1].hasRemaining()){
+                activeChannel.write(record);
+            }
+        } else {
+            int start = writeBuffer.position();
+            Record.putHeader(writeBuffer, key, timestamp, flags, valueBytes.length);
 
             // Add the value to the buffer with size valueBytes.length
-            buffer.put(valueBytes);
-        } finally {
-            lock.writeLock().unlock();
+            writeBuffer.put(valueBytes);
+            Record.seal(writeBuffer, start, entrySize);
+        }
+        activeSize += entrySize;
+
+        write.fileId = fileId;
+        write.offset = offset;
+        write.size = entrySize;
+        write.timestamp = timestamp;
+        // Hint entries of tombstones carry the negated record size.
+        boolean replaced = hintMap.put(key, fileId, offset, write.tombstone ? -entrySize : entrySize, timestamp, superseded);
+        if(batchHintCount * 3 == batchHints.length){
+            batchHints = Arrays.copyOf(batchHints, batchHints.length * 2);
         }
+        batchHints[batchHintCount * 3] = key;
+        batchHints[batchHintCount * 3 + 1] = replaced ? (long) superseded.offset << 32 | (superseded.size & 0xFFFFFFFFL) : 0;
+        batchHints[batchHintCount * 3 + 2] = superseded.timestamp;
+        batchHintCount++;
     }
 
-    private byte[] readRequest(long key){
-        lock.readLock().lock();  // Multiple threads can read at the same time
-        byte[] value;
+    // Appender thread, before the first writeRequest of a batch. The write buffer is empty here,
+    // every batch before was either synced or taken back.
+    void beginBatch(){
+        batchFileId = fileId;
+        batchSize = activeSize;
+        batchHintCount = 0;
+    }
+
+    // Takes back a batch whose writes or sync failed, so its records don't come back with the next
+    // batch or the next restart. Once the batch rotated the segment it can't be, the shard stops
+    // taking writes.
+    void rollbackBatch(){
+        if(fileId != batchFileId){
+            breakShard("the failed batch already sealed segment " + batchFileId);
+            return;
+        }
+        writeBuffer.clear();
+        activeSize = batchSize;
+        for(int i = batchHintCount - 1; i >= 0; i--){
+            long key = batchHints[i * 3];
+            long entry = batchHints[i * 3 + 1];
+            if(entry == 0){
+                hintMap.remove(key, null);
+            } else {
+                hintMap.put(key, fileId, (int) (entry >>> 32), (int) entry, batchHints[i * 3 + 2]);
+            }
+        }
+        batchHintCount = 0;
         try {
-            // Check if the key is in the memory
-            if(!inMemory.containsKey(key)){
-                //TODO
-//                throw new RuntimeException("Can't Find Key: " + key);
-                System.out.println("Can't Find Key: " + key);
-                return null;
+            // Records that went straight to the file, or with a flush of the full buffer
+            if(activeChannel.size() > batchSize){
+                activeChannel.truncate(batchSize);
             }
+        } catch (IOException e) {
+            breakShard("segment " + fileId + " couldn't be truncated: " + e.getMessage());
+        }
+    }
 
-            // Get the offset and fileID from the memory
-            ValueEntry valueEntry = inMemory.get(key);
-            int offset = valueEntry.getOffset();
-            int entryFileId = valueEntry.getFileId();
-
-            ByteBuffer duplicate = null;
-            if(entryFileId != fileId){
-                try (FileInputStream fis = new FileInputStream(filePath + entryFileId);
-                     FileChannel fileChannel = fis.getChannel()) {
+    private void breakShard(String reason){
+        broken = true;
+        System.err.println("Shard " + shard + " is read-only until a restart, " + reason);
+    }
 
-                    ByteBuffer tempBuffer = ByteBuffer.allocate(maxBufferSize);
-                    fileChannel.read(tempBuffer); // Reads data into buffer
-                    tempBuffer.flip(); // Prepare buffer for reading
-                    duplicate = tempBuffer.duplicate();
+    // Appender thread, fails every batch after a rollback went wrong.
+    void checkIntact(){
+        if(broken) throw brokenError();
+    }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }else {
-                duplicate = buffer.duplicate();
-            }
+    private IllegalStateException brokenError(){
+        return new IllegalStateException("Shard " + shard + " is read-only after a failed write, restart the server");
+    }
 
-            duplicate.position(offset);
-            int valueSize = duplicate.getInt();
-            long entryKey = duplicate.getLong();
-            if(key != entryKey){
-                throw new RuntimeException("The key you provided not equal the key that has been found in the file.");
+    // Makes a synced write visible to readers.
+    void publish(Appender.PendingWrite write){
+        // Tombstones count as live, they have to stay until a merge can drop them.
+        usage.addLive(write.fileId, write.size);
+        cache.invalidate(write.key);
+        if(write.tombstone){
+            if(inMemory.remove(write.key, superseded)){
+                usage.supersede(superseded.fileId, superseded.size);
             }
-
-            value = new byte[valueSize];
-            duplicate.get(value);
-        } finally {
-            lock.readLock().unlock();
+            return;
+        }
+        if(inMemory.put(write.key, write.fileId, write.offset, write.size, write.timestamp, superseded)){
+            usage.supersede(superseded.fileId, superseded.size);
         }
-        return value;
     }
 
-    private ByteBuffer readFileToByteBuffer(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file);
-             FileChannel channel = fis.getChannel()) {
+    // The lock is always taken through these, so the waits show up in the metrics.
+    void lockRead(){
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        lockWaitNanos.add(System.nanoTime() - start);
+    }
 
-            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
-            channel.read(buffer);
-            buffer.flip(); // Prepare for reading
-            return buffer;
-        }
+    void lockWrite(){
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        lockWaitNanos.add(System.nanoTime() - start);
     }
 
-    private void fillCompactionMap(HashMap<Long, byte[]> compactionMap, ByteBuffer tmpBuffer){
-        while(tmpBuffer.hasRemaining()){
-            int valueSize = tmpBuffer.getInt();
-            long key = tmpBuffer.getLong();
-            byte[] value = new byte[valueSize];
-            tmpBuffer.get(value);
+    // Called by the appender once everything it wrote so far is in the keydir.
+    void markPublished(){
+        publishedFileId = fileId;
+    }
 
-            compactionMap.put(key, value);
+    void notifyAppended(){
+        synchronized (appended){
+            appended.notifyAll();
         }
     }
 
-    // if inMemory has space
-    // 10 11
-    // r,r,r ... ,r   c_part1, w --> fileId w w w w  , c_part2
-    public void compaction(){
-        // Compaction Algorithm
-        lock.readLock().lock();
-        System.out.println("Starting Compaction....");
-        startCompactionIdx = fileId - 1;
-
-        HashMap<Long,byte[]> compactionMap = new HashMap<>();
-        File[] files = null;
-        File[] hintFiles = null;
+    // Follower only. Drops everything, the leader is about to send its whole log.
+    void reset() throws IOException {
+        compactor.pause();
+        lockWrite();
         try {
-            files = getFilesFromFolder(filePath);
-            hintFiles = getFilesFromFolder(hintPath);
-            for (File file : files) {
-                ByteBuffer tmpBuffer = readFileToByteBuffer(file);
-                fillCompactionMap(compactionMap, tmpBuffer);
+            activeChannel.close();
+            for(String path : new String[]{ filePath, hintPath }){
+                File[] files = getFilesFromFolder(path);
+                if(files == null) continue;
+                for(File file : files){
+                    Files.deleteIfExists(file.toPath());
+                }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            inMemory.clear();
+            hintMap.clear();
+            writeBuffer.clear();
+            segments.clear();
+            cache.clear();
+            usage.rebuild(inMemory, null);
+            fileId = 0;
+            publishedFileId = 0;
+            openActiveSegment();
         } finally {
-            lock.readLock().unlock();
+            lock.writeLock().unlock();
+            compactor.resume();
         }
+        System.out.println("Shard " + shard + " cleared for a full resync from the leader");
+    }
 
-        // Saving Compaction Map to New File
-        // InMemory Modification
-        lock.writeLock().lock();
-        try{
-            if(hintFiles != null){
-                for (File file : hintFiles) {
-                    boolean deleted = file.delete(); // Delete the file after processing
+    private void checkFresh(){
+        long lag = System.currentTimeMillis() - caughtUpAt;
+        if(readOnly && lag > maxLagMs){
+            throw new IllegalStateException("Shard " + shard + " is " + lag + " ms behind the leader");
+        }
+    }
 
-                    if (!deleted) {
-                        System.err.println("Failed to delete file: " + file.getName());
-                    }
-                }
-            }
-            if (files != null) {
-                for (File file : files) {
-                    boolean deleted = file.delete(); // Delete the file after processing
+    private CompletableFuture<Void> checkWritable(){
+        if(broken){
+            return CompletableFuture.failedFuture(brokenError());
+        }
+        return readOnly ? CompletableFuture.failedFuture(new IllegalStateException("Read-only follower, writes go to the leader")) : null;
+    }
 
-                    if (!deleted) {
-                        System.err.println("Failed to delete file: " + file.getName());
-                    }
-                }
-            }
-            ByteBuffer compactionBuffer = ByteBuffer.allocate(maxBufferSize);
+    // Entry points used by Shards once it picked the shard of the key.
+    byte[] get(long key){
+        checkFresh();
+        return readRequest(key);
+    }
 
-            ByteBuffer compactionHintBuffer = ByteBuffer.allocate(maxBufferSize);
-            for(Map.Entry<Long, byte[]> entry : compactionMap.entrySet()){
-                long key = entry.getKey();
-                byte[] value = entry.getValue();
+    CompletableFuture<Void> put(long key, byte[] value){
+        CompletableFuture<Void> rejected = checkWritable();
+        return rejected != null ? rejected : appender.append(key, value);
+    }
 
-                int entrySize = value.length + keySize + valueSize;
+    CompletableFuture<Void> delete(long key){
+        CompletableFuture<Void> rejected = checkWritable();
+        return rejected != null ? rejected : appender.delete(key);
+    }
 
-                if(entrySize + compactionBuffer.position() > maxBufferSize){
-                    System.out.println("Saving Compaction Map in File " + startCompactionIdx);
-                    writeToDisk(compactionBuffer, String.valueOf(startCompactionIdx), filePath);
-                    writeToDisk(compactionHintBuffer, String.valueOf(startCompactionIdx) , hintPath);
-                    startCompactionIdx -= 1;
-                }
+    // All keys go into one appender batch: one sync, one acknowledgement.
+    CompletableFuture<Void> putAll(long[] keys, byte[][] values){
+        CompletableFuture<Void> rejected = checkWritable();
+        return rejected != null ? rejected : appender.appendAll(keys, values);
+    }
 
-                if(inMemory.containsKey(key)){
-                    if(inMemory.get(key).getFileId() < fileId){
-                        inMemory.put(key, new ValueEntry(compactionBuffer.position(), startCompactionIdx));
-                    }
+    // One pass for the whole batch: the lock is taken once and the records are read in file order,
+    // each result is completed as soon as its record is read.
+    void getAll(long[] keys, List<CompletableFuture<byte[]>> results){
+        checkFresh();
+        lockRead();
+        try {
+            int found = 0;
+            long[] locations = new long[keys.length];
+            int[] sizes = new int[keys.length];
+            Integer[] order = new Integer[keys.length];
+            KeyDir.Entry entry = entries.get();
+            for(int i = 0; i < keys.length; i++){
+                if(inMemory.get(keys[i], entry)){
+                    locations[i] = ((long) entry.fileId << 32) | (entry.offset & 0xFFFFFFFFL);
+                    sizes[i] = entry.size;
+                    order[found++] = i;
+                } else {
+                    results.get(i).complete(null);
                 }
-                else {
-                    throw new RuntimeException("Key not in Memory!!!");
+            }
+            Arrays.sort(order, 0, found, Comparator.comparingLong(i -> locations[i]));
+            for(int n = 0; n < found; n++){
+                int i = order[n];
+                try {
+                    results.get(i).complete(readValue(keys[i], (int) (locations[i] >>> 32), (int) locations[i], sizes[i]));
+                } catch (IOException | RuntimeException e) {
+                    results.get(i).completeExceptionally(e);
                 }
-                compactionHintBuffer.putLong(key);
-                compactionHintBuffer.putInt(compactionBuffer.position());
-
-                // Add Value Size to the buffer with size long -> valueSize = 8
-                compactionBuffer.putInt(value.length);
-
-                // Add the key to the buffer with size long -> keySize = 8
-                compactionBuffer.putLong(key);
-
-                // Add the value to the buffer with size valueBytes.length
-                compactionBuffer.put(value);
             }
-            System.out.println("Saving Compaction Map in File " + startCompactionIdx);
-            writeToDisk(compactionBuffer, String.valueOf(startCompactionIdx), filePath);
-            writeToDisk(compactionHintBuffer, String.valueOf(startCompactionIdx), hintPath);
-        }finally {
-            lock.writeLock().unlock();
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    private byte[] saveAllKeysAndValues(String path, String fileName){
-        lock.readLock().lock();
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    record KeyValue(long key, byte[] value) {}
+
+    // Keys in [from, to] in ascending order, at most limit of them. Narrow ranges like a set of
+    // station ids are probed key by key, wide ones filter a snapshot of the keydir.
+    List<KeyValue> scan(long from, long to, int limit){
+        checkFresh();
+        limit = Math.min(limit, MAX_SCAN_RESULTS);
+        List<KeyValue> result = new ArrayList<>();
+        if(from > to || limit <= 0) return result;
+
+        long[] keys = null;
+        boolean probe = to - from >= 0 && to - from < MAX_PROBED_RANGE;
+        if(!probe){
+            long[][] matching = { new long[16] };
+            int[] count = { 0 };
+            inMemory.forEach((key, fileId, offset, size, timestamp) -> {
+                if(key < from || key > to) return;
+                if(count[0] == matching[0].length) matching[0] = Arrays.copyOf(matching[0], count[0] * 2);
+                matching[0][count[0]++] = key;
+            });
+            keys = Arrays.copyOf(matching[0], count[0]);
+            Arrays.sort(keys);
+        }
+
+        KeyDir.Entry entry = entries.get();
+        int candidates = probe ? (int) (to - from + 1) : keys.length;
+        lockRead();
         try {
-            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(byteOut, StandardCharsets.UTF_8))) {
-                writer.write("Key,Value");
-                writer.newLine();
-
-                for (Long key : inMemory.keySet()) {
-                    byte[] valueBytes = readRequest(key);
-                    String value = valueBytes != null ? new String(valueBytes, StandardCharsets.UTF_8) : "";
-                    writer.write(key + "," + value);
-                    writer.newLine();
+            for(int i = 0; i < candidates && result.size() < limit; i++){
+                long key = probe ? from + i : keys[i];
+                if(!inMemory.get(key, entry)) continue;
+                try {
+                    result.add(new KeyValue(key, readValue(key, entry.fileId, entry.offset, entry.size)));
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-
-                writer.flush(); // Important: flush the writer to ensure all data is written to the stream
             }
-
-
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
             lock.readLock().unlock();
         }
+        return result;
+    }
 
-        return byteOut.toByteArray();
+    // Only a cache miss reads the segment.
+    private byte[] readValue(long key, int fileId, int offset, int size) throws IOException {
+        byte[] value = cache.get(key, fileId, offset);
+        if(value == null){
+            value = segments.read(fileId, offset, size, key);
+            cache.put(key, fileId, offset, value);
+        }
+        return value;
     }
 
-    @Override
-    public byte[] call(){
-        char req = request.charAt(0);
-        String[] requestParts;
-        long key;
-        switch (req){
-            // WRITE REQUEST
-            case 'w':
-                requestParts = request.split(" ", 3);
-                key = Long.parseLong(requestParts[1]);
-                String value = requestParts[2];
-                writeRequest(key, value);
-                break;
-
-            // READ REQUEST
-            case 'r':
-                requestParts = request.split(" ", 2);
-                key = Long.parseLong(requestParts[1]);
-                return readRequest(key);
-
-            // COMPACTION REQUEST
-            case 'c':
-                compaction();
-                break;
-
-            // SAVE ALL KEYS AND VALUES TO A FILE NAME WITH THE TIMESTAMP OF THE CURRENT TIME WITH EXTENSION .csv
-            case 'a':
-                requestParts = request.split(" ",3);
-                return saveAllKeysAndValues(requestParts[1], requestParts[2]);
+    private byte[] readRequest(long key){
+        lockRead();  // Only waits while a compaction swaps files
+        try {
+            // Check if the key is in the memory
+            KeyDir.Entry entry = entries.get();
+            if(!inMemory.get(key, entry)){
+                return null;
+            }
+
+            // Published records are always on disk already, the active segment included.
+            try {
+                return readValue(key, entry.fileId, entry.offset, entry.size);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        return null;
     }
 }
@@ -0,0 +1,130 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A batch whose sync fails is taken back: its records neither show up with a later batch nor after
+// a restart, and the hint entries it replaced are back in place.
+class AppenderRollbackTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int VALUE_SIZE = 200;
+
+    private Path dir;
+    private final AtomicBoolean failSync = new AtomicBoolean();
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("bitcask-test-");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void failedBatchIsTakenBack() throws IOException {
+        Worker engine = open();
+        try {
+            engine.put(1, value(1)).join();
+
+            long[] keys = { 1, 2, 3 };
+            byte[][] values = { value(1001), value(1002), value(1003) };
+            failSync.set(true);
+            assertThrows(CompletionException.class, () -> engine.putAll(keys, values).join());
+
+            // Enough to seal the segment, so its hint file is written
+            for (long key = 10; key < 40; key++) {
+                engine.put(key, value(key)).join();
+            }
+            assertTrue(engine.fileId > 0, "the segment didn't rotate");
+            check(engine);
+        } finally {
+            close(engine);
+        }
+
+        Worker reopened = open();
+        try {
+            check(reopened);
+        } finally {
+            close(reopened);
+        }
+    }
+
+    @Test
+    void failedBatchThatRotatedStopsWrites() throws IOException {
+        Worker engine = open();
+        try {
+            engine.put(1, value(1)).join();
+
+            long[] keys = new long[40];
+            byte[][] values = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = 100 + i;
+                values[i] = value(keys[i]);
+            }
+            failSync.set(true);
+            assertThrows(CompletionException.class, () -> engine.putAll(keys, values).join());
+            assertThrows(CompletionException.class, () -> engine.put(2, value(2)).join());
+            assertArrayEquals(value(1), engine.get(1));
+        } finally {
+            close(engine);
+        }
+    }
+
+    private void check(Worker engine) {
+        assertArrayEquals(value(1), engine.get(1), "key 1");
+        assertNull(engine.get(2), "key 2");
+        assertNull(engine.get(3), "key 3");
+        for (long key = 10; key < 40; key++) {
+            assertArrayEquals(value(key), engine.get(key), "key " + key);
+        }
+    }
+
+    private Worker open() throws IOException {
+        return new Worker(0, dir.resolve("logs") + File.separator, dir.resolve("hints") + File.separator,
+                SEGMENT_SIZE, 1024 * 1024, 16, 1024, 1, 256, 1024, 1L << 30, new IoThrottle(0),
+                Durability.GROUP, 0, 1000, 0) {
+            @Override
+            void sync() throws IOException {
+                super.sync();
+                if (failSync.getAndSet(false)) {
+                    throw new IOException("injected sync failure");
+                }
+            }
+        };
+    }
+
+    private static byte[] value(long key) {
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) ('a' + (key + i) % 26);
+        }
+        return value;
+    }
+
+    private static void close(Worker engine) throws IOException {
+        engine.appender.stop();
+        engine.activeChannel.close();
+        engine.segments.clear();
+    }
+}
@@ -0,0 +1,115 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A batch that rotates the active segment is only published after its sync. A merge running in
+// between must not take the segment the batch just sealed for garbage.
+class CompactionRaceTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int VALUE_SIZE = 200;
+
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("bitcask-test-");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void mergeDuringUnpublishedRotationKeepsTheBatch() throws IOException {
+        AtomicBoolean merged = new AtomicBoolean();
+        AtomicBoolean armed = new AtomicBoolean();
+        int[] batchStart = new int[1];
+        Worker engine = new Worker(0, dir.resolve("logs") + File.separator, dir.resolve("hints") + File.separator,
+                SEGMENT_SIZE, 1024 * 1024, 16, 1024, 1, 256, 1024, 1L << 30, new IoThrottle(0),
+                Durability.GROUP, 0, 1000, 0) {
+            // Runs on the appender thread after the batch was written and before it is published
+            @Override
+            void sync() throws IOException {
+                if (armed.get() && fileId > batchStart[0]) {
+                    armed.set(false);
+                    compactor.compact();
+                    merged.set(true);
+                }
+                super.sync();
+            }
+        };
+        try {
+            // A few sealed, published segments for the merge to work on
+            for (long key = 0; key < 40; key++) {
+                engine.put(key, value(key)).join();
+            }
+
+            long[] keys = new long[40];
+            byte[][] values = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = 100 + i;
+                values[i] = value(keys[i]);
+            }
+            batchStart[0] = engine.fileId;
+            armed.set(true);
+            // About twice the segment size, rotates partway through
+            engine.putAll(keys, values).join();
+            assertTrue(merged.get(), "the batch didn't rotate");
+
+            for (long key = 0; key < 40; key++) {
+                assertArrayEquals(value(key), engine.get(key), "key " + key);
+            }
+            for (long key : keys) {
+                assertArrayEquals(value(key), engine.get(key), "key " + key);
+            }
+        } finally {
+            close(engine);
+        }
+
+        Worker reopened = new Worker(0, dir.resolve("logs") + File.separator, dir.resolve("hints") + File.separator,
+                SEGMENT_SIZE, 1024 * 1024, 16, 1024, 1, 256, 1024, 1L << 30, new IoThrottle(0),
+                Durability.GROUP, 0, 1000, 0);
+        try {
+            for (long key = 0; key < 40; key++) {
+                assertArrayEquals(value(key), reopened.get(key), "key " + key + " after a restart");
+            }
+            for (long key = 100; key < 140; key++) {
+                assertArrayEquals(value(key), reopened.get(key), "key " + key + " after a restart");
+            }
+        } finally {
+            close(reopened);
+        }
+    }
+
+    private static byte[] value(long key) {
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) ('a' + (key + i) % 26);
+        }
+        return value;
+    }
+
+    private static void close(Worker engine) throws IOException {
+        engine.appender.stop();
+        engine.activeChannel.close();
+        engine.segments.clear();
+    }
+}
@@ -0,0 +1,141 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A crash can leave the highest segment with a torn first record. That is not an old format segment,
+// it is cut off, and the segments of old format stores are still converted.
+class HintLoaderTest {
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("bitcask-test-");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void tornFirstRecordOfTheHighestSegmentIsCut() throws IOException {
+        Worker engine = open();
+        try {
+            for (long key = 0; key < 10; key++) {
+                engine.put(key, value(key)).join();
+            }
+        } finally {
+            close(engine);
+        }
+        // Zeroes a multiple of 12 bytes long, it would parse as old records of key 0
+        Path torn = dir.resolve("logs").resolve(String.valueOf(engine.fileId + 1));
+        Files.write(torn, new byte[48]);
+
+        engine = open();
+        try {
+            for (long key = 0; key < 10; key++) {
+                assertArrayEquals(value(key), engine.get(key), "key " + key);
+            }
+            assertEquals(0, Files.size(torn));
+        } finally {
+            close(engine);
+        }
+    }
+
+    @Test
+    void tornFirstRecordWithoutFormatFile() throws IOException {
+        Worker engine = open();
+        try {
+            for (long key = 0; key < 10; key++) {
+                engine.put(key, value(key)).join();
+            }
+        } finally {
+            close(engine);
+        }
+        // A store written before the format file existed
+        Files.delete(dir.resolve("logs").resolve(Worker.FORMAT_FILE));
+        Path torn = dir.resolve("logs").resolve(String.valueOf(engine.fileId + 1));
+        Files.write(torn, new byte[48]);
+
+        engine = open();
+        try {
+            for (long key = 0; key < 10; key++) {
+                assertArrayEquals(value(key), engine.get(key), "key " + key);
+            }
+        } finally {
+            close(engine);
+        }
+    }
+
+    @Test
+    void legacySegmentsAreConverted() throws IOException {
+        Path logs = Files.createDirectories(dir.resolve("logs"));
+        Files.createDirectories(dir.resolve("hints"));
+        Files.write(logs.resolve("0"), legacy(0, 10, false));
+        // The old active segment, cut off in the middle of its last record
+        Files.write(logs.resolve("1"), legacy(10, 20, true));
+
+        Worker engine = open();
+        try {
+            for (long key = 0; key < 19; key++) {
+                assertArrayEquals(value(key), engine.get(key), "key " + key);
+            }
+            assertEquals(null, engine.get(19L));
+            assertEquals(String.valueOf(Record.VERSION),
+                    Files.readString(logs.resolve(Worker.FORMAT_FILE), StandardCharsets.UTF_8));
+        } finally {
+            close(engine);
+        }
+    }
+
+    // [int valueSize][long key][value] records of keys from..to-1
+    private static byte[] legacy(long from, long to, boolean torn) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (to - from) * (12 + 64));
+        for (long key = from; key < to; key++) {
+            byte[] value = value(key);
+            buffer.putInt(value.length).putLong(key).put(value);
+        }
+        int length = torn ? buffer.position() - 10 : buffer.position();
+        byte[] bytes = new byte[length];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+    private Worker open() throws IOException {
+        return new Worker(0, dir.resolve("logs") + File.separator, dir.resolve("hints") + File.separator,
+                4096, 1024 * 1024, 16, 1024, 1, 256, 1024, 1L << 30, new IoThrottle(0),
+                Durability.GROUP, 0, 1000, 0);
+    }
+
+    private static byte[] value(long key) {
+        byte[] value = new byte[64];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) ('a' + (key + i) % 26);
+        }
+        return value;
+    }
+
+    private static void close(Worker engine) throws IOException {
+        engine.appender.stop();
+        engine.activeChannel.close();
+        engine.segments.clear();
+    }
+}
@@ -19,7 +19,11 @@ public class BitcaskClient {
             System.out.println("Usage:");
             System.out.println("--view-all");
             System.out.println("--view --key=SOME_KEY");
+            System.out.println("--delete --key=SOME_KEY");
             System.out.println("--perf --clients=N");
+            System.out.println("--load [--rate=REQ_PER_S] [--duration=S] [--warmup=S] [--read-ratio=0..1] [--keys=N]");
+            System.out.println("       [--distribution=uniform|zipfian] [--value-size=BYTES] [--connections=N] [--pipeline=N]");
+            System.out.println("       [--preload] [--host=HOST] [--port=PORT]");
             return;
         }
 
@@ -30,10 +34,17 @@ public class BitcaskClient {
             String key = args[1].substring("--key=".length());
             viewKey(key);
 
+        } else if (args[0].equals("--delete") && args.length == 2 && args[1].startsWith("--key=")) {
+            String key = args[1].substring("--key=".length());
+            deleteKey(key);
+
         } else if (args[0].equals("--perf") && args.length == 2 && args[1].startsWith("--clients=")) {
             int clients = Integer.parseInt(args[1].substring("--clients=".length()));
             perfTest(clients);
 
+        } else if (args[0].equals("--load")) {
+            LoadGenerator.fromArgs(args).run();
+
         } else {
             System.err.println("Invalid arguments.");
         }
@@ -113,7 +124,8 @@ public class BitcaskClient {
             socket.shutdownOutput();
 
             String response = reader.readLine();
-            if (response != null) {
+            // An empty reply line means the key is not there.
+            if (response != null && !response.isEmpty()) {
                 System.out.println("Value: " + response);
             } else {
                 System.out.println("Key not found.");
@@ -124,6 +136,24 @@ public class BitcaskClient {
         }
     }
 
+    private static void deleteKey(String key) {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            writer.write("d " + key + "\n");
+            writer.flush();
+            socket.shutdownOutput();
+
+            // The server closes the connection once the delete is durable.
+            reader.readLine();
+            System.out.println("Deleted key " + key);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void perfTest(int numClients) {
         ExecutorService executor = Executors.newFixedThreadPool(numClients);
         long timestamp = Instant.now().getEpochSecond();
@@ -0,0 +1,336 @@
+package org.example;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Open-loop load against the binary protocol: requests go out on a fixed schedule whether or not the
+// server keeps up, and every latency is measured from the time the request was supposed to be sent.
+// A server that stalls therefore shows up in the percentiles with the full time requests queued
+// behind the stall, instead of slowing the generator down and hiding it (coordinated omission).
+//
+// Each connection gets an equal share of the rate, a sender thread that keeps up to pipeline requests
+// in flight and a receiver thread that matches the in-order replies to their intended send times.
+public class LoadGenerator {
+    private static final byte MAGIC = (byte) 0xB1;
+    private static final byte PUT = 1;
+    private static final byte GET = 2;
+    private static final byte MPUT = 5;
+    private static final byte OK = 0;
+    private static final byte NOT_FOUND = 1;
+    private static final int RESPONSE_HEADER_SIZE = 10;
+    private static final double ZIPFIAN_THETA = 0.99;
+
+    private String host = "localhost";
+    private int port = 5000;
+    private double rate = 10_000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private double readRatio = 0.9;
+    private int keys = 10_000;
+    private boolean zipfian;
+    private int valueSize = 200;
+    private int connections = 4;
+    private int pipeline = 1024;
+    private boolean preload;
+
+    private byte[] value;
+    private Zipfian zipf;
+
+    // Everything sent and received on one connection. The histograms and counters are only touched by
+    // the receiver thread, and read once both threads are done.
+    private final class Lane {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        final SplittableRandom random;
+        // Free slots of the pipeline window
+        final Semaphore window = new Semaphore(pipeline);
+        // Intended send time and opcode of the request in each slot, handed from sender to receiver
+        final AtomicLongArray intended = new AtomicLongArray(pipeline);
+        final byte[] opcodes = new byte[pipeline];
+        final Histogram reads = new Histogram(3);
+        final Histogram writes = new Histogram(3);
+        volatile long sent;
+        long errors;
+        long notFound;
+        // Requests the sender was late for by more than a millisecond
+        long late;
+        volatile IOException failure;
+        volatile boolean closed;
+
+        Lane(int index) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            random = new SplittableRandom(index * 0x9E3779B97F4A7C15L);
+        }
+
+        // Sends on the schedule start, start + interval, ... until end.
+        void send(long start, long interval, long end) {
+            long count = 0;
+            try {
+                for (long next = start; next < end && failure == null; next = start + ++count * interval) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        // Anything queued goes out before sleeping
+                        out.flush();
+                        LockSupport.parkNanos(wait);
+                    } else if (-wait > TimeUnit.MILLISECONDS.toNanos(1)) {
+                        late++;
+                    }
+                    // A full window blocks the sender, the time still counts against the request
+                    while (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        if (failure != null) return;
+                    }
+                    int slot = (int) (count % pipeline);
+                    boolean read = random.nextDouble() < readRatio;
+                    opcodes[slot] = read ? GET : PUT;
+                    intended.set(slot, next);
+                    out.writeByte(MAGIC);
+                    out.writeByte(opcodes[slot]);
+                    out.writeByte(0);
+                    out.writeInt((int) count);
+                    out.writeLong(nextKey(random));
+                    if (read) {
+                        out.writeInt(0);
+                    } else {
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                sent = count;
+            }
+        }
+
+        // Records every reply whose request was meant to go out at or after measureFrom.
+        // Runs until the connection is closed.
+        void receive(long measureFrom) {
+            try {
+                while (true) {
+                    if (in.readByte() != MAGIC) throw new IOException("Not a Bitcask binary reply");
+                    byte status = in.readByte();
+                    int requestId = in.readInt();
+                    in.skipNBytes(in.readInt());
+                    long now = System.nanoTime();
+                    int slot = (int) (Integer.toUnsignedLong(requestId) % pipeline);
+                    long start = intended.get(slot);
+                    boolean read = opcodes[slot] == GET;
+                    window.release();
+                    if (start < measureFrom) continue;
+                    if (status == NOT_FOUND) {
+                        notFound++;
+                    } else if (status != OK) {
+                        errors++;
+                    }
+                    (read ? reads : writes).recordValue(Math.max(0, (now - start) / 1000));
+                }
+            } catch (IOException e) {
+                if (!closed && failure == null) failure = e;
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    public static LoadGenerator fromArgs(String[] args) {
+        LoadGenerator load = new LoadGenerator();
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            String value = option.length > 1 ? option[1] : "";
+            switch (option[0]) {
+                case "--host" -> load.host = value;
+                case "--port" -> load.port = Integer.parseInt(value);
+                case "--rate" -> load.rate = Double.parseDouble(value);
+                case "--duration" -> load.durationSeconds = Integer.parseInt(value);
+                case "--warmup" -> load.warmupSeconds = Integer.parseInt(value);
+                case "--read-ratio" -> load.readRatio = Double.parseDouble(value);
+                case "--keys" -> load.keys = Integer.parseInt(value);
+                case "--distribution" -> load.zipfian = value.equalsIgnoreCase("zipfian");
+                case "--value-size" -> load.valueSize = Integer.parseInt(value);
+                case "--connections" -> load.connections = Integer.parseInt(value);
+                case "--pipeline" -> load.pipeline = Integer.parseInt(value);
+                case "--preload" -> load.preload = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        return load;
+    }
+
+    // Station ids 1..keys
+    private long nextKey(SplittableRandom random) {
+        return 1 + (zipf != null ? zipf.next(random.nextDouble()) : random.nextInt(keys));
+    }
+
+    public void run() throws IOException, InterruptedException {
+        value = new byte[valueSize];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < valueSize; i++) {
+            value[i] = (byte) ('a' + random.nextInt(26));
+        }
+        if (zipfian) {
+            zipf = new Zipfian(keys, ZIPFIAN_THETA);
+        }
+        System.out.printf("Open-loop load: %.0f req/s over %d connections for %d s after a %d s warmup, %.0f%% reads, %s keys 1..%d, %d byte values%n",
+                rate, connections, durationSeconds, warmupSeconds, readRatio * 100, zipfian ? "zipfian" : "uniform", keys, valueSize);
+        if (preload) {
+            preload();
+        }
+
+        Lane[] lanes = new Lane[connections];
+        for (int i = 0; i < connections; i++) {
+            lanes[i] = new Lane(i);
+        }
+        // Every lane sends at rate / connections, their schedules interleave
+        long interval = (long) (1e9 * connections / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Thread[] senders = new Thread[connections];
+        Thread[] receivers = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            Lane lane = lanes[i];
+            long laneStart = start + interval * i / connections;
+            senders[i] = new Thread(() -> lane.send(laneStart, interval, end), "load-sender-" + i);
+            receivers[i] = new Thread(() -> lane.receive(measureFrom), "load-receiver-" + i);
+            senders[i].start();
+            receivers[i].start();
+        }
+        long missing = 0;
+        for (int i = 0; i < connections; i++) {
+            senders[i].join();
+            // Every request that went out gets its reply, or the run reports it as missing
+            if (lanes[i].failure == null && !lanes[i].window.tryAcquire(pipeline, 10, TimeUnit.SECONDS)) {
+                missing += pipeline - lanes[i].window.availablePermits();
+            }
+            lanes[i].close();
+            receivers[i].join();
+        }
+        long elapsed = System.nanoTime() - measureFrom;
+        report(lanes, elapsed, missing);
+    }
+
+    // Writes every key once in batches, so the reads of the run find their keys.
+    private void preload() throws IOException {
+        long started = System.nanoTime();
+        int batch = 1000;
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            ByteBuffer entries = ByteBuffer.allocate(batch * (Long.BYTES + Integer.BYTES + value.length));
+            for (int first = 1; first <= keys; first += batch) {
+                entries.clear();
+                for (int key = first; key < first + batch && key <= keys; key++) {
+                    entries.putLong(key).putInt(value.length).put(value);
+                }
+                out.writeByte(MAGIC);
+                out.writeByte(MPUT);
+                out.writeByte(0);
+                out.writeInt(first);
+                out.writeLong(0);
+                out.writeInt(entries.position());
+                out.write(entries.array(), 0, entries.position());
+                out.flush();
+                byte[] reply = new byte[RESPONSE_HEADER_SIZE];
+                in.readFully(reply);
+                in.skipNBytes(ByteBuffer.wrap(reply).getInt(6));
+                if (reply[1] != OK) throw new IOException("Preload failed at key " + first);
+            }
+        }
+        System.out.printf("Preloaded %d keys in %d ms%n", keys, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private void report(Lane[] lanes, long elapsedNanos, long missing) {
+        Histogram reads = new Histogram(3);
+        Histogram writes = new Histogram(3);
+        long sent = 0, errors = 0, notFound = 0, late = 0;
+        for (Lane lane : lanes) {
+            reads.add(lane.reads);
+            writes.add(lane.writes);
+            sent += lane.sent;
+            errors += lane.errors;
+            notFound += lane.notFound;
+            late += lane.late;
+            if (lane.failure != null) {
+                System.err.println("Connection failed: " + lane.failure.getMessage());
+            }
+        }
+        Histogram all = new Histogram(3);
+        all.add(reads);
+        all.add(writes);
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Sent %d requests, measured %d, errors %d, not found %d, no reply %d, sent over 1 ms late %d%n",
+                sent, all.getTotalCount(), errors, notFound, missing, late);
+        System.out.printf("Throughput %.1f req/s (target %.0f)%n", all.getTotalCount() / seconds, rate);
+        System.out.println("Latency from intended send time, ms:");
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "", "count", "p50", "p90", "p99", "p99.9", "max");
+        row("reads", reads);
+        row("writes", writes);
+        row("all", all);
+    }
+
+    private static void row(String name, Histogram histogram) {
+        if (histogram.getTotalCount() == 0) return;
+        System.out.printf("%-8s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    // Zipfian ranks 0..items-1 with rank 0 the most popular, after Gray et al. "Quickly generating
+    // billion-record synthetic databases" as used by YCSB.
+    private static final class Zipfian {
+        final long items;
+        final double theta;
+        final double alpha;
+        final double zetan;
+        final double eta;
+
+        Zipfian(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetan = zeta(items, theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        long next(double u) {
+            double uz = u * zetan;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, theta)) return 1;
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
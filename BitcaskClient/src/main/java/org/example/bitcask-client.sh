@@ -24,11 +24,8 @@ view_all() {
     
     echo "Requesting all keys and values..."
     
-    # Create a header for the CSV file
-    echo "Key,Value" > "$filename"
-    
-    # Connect to server and request all keys
-    result=$(echo "a $RESULTS_DIR $timestamp.csv" | nc $SERVER_HOST $SERVER_PORT)
+    # The server streams the CSV, header included
+    echo "a $RESULTS_DIR $timestamp.csv" | nc $SERVER_HOST $SERVER_PORT > "$filename"
     
     if [ -f "$filename" ]; then
         echo "Data successfully written to $filename"
@@ -67,9 +64,7 @@ run_perf_test() {
     for (( i=1; i<=$num_clients; i++ )); do
         (
             filename="${timestamp}_thread_${i}.csv"
-            echo "Key,Value" > "$RESULTS_DIR/$filename"
-            
-            echo "a $RESULTS_DIR $filename" | nc $SERVER_HOST $SERVER_PORT > /dev/null &
+            echo "a $RESULTS_DIR $filename" | nc $SERVER_HOST $SERVER_PORT > "$RESULTS_DIR/$filename" &
             
             echo "Thread $i started"
         ) &
@@ -0,0 +1,81 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Validation and normalization of station readings, messages per second on one thread. The
+// Normalizer has to keep up with 100k readings/s, so every score below that is a regression.
+//
+// The readings look like the ones the stations send. jacksonTree builds the JsonNode tree a
+// straightforward validator would and checks the same fields, as the baseline.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SchemaBenchmark {
+    private static final int MESSAGES = 1024;
+    private static final String[] BATTERY = {"LOW", "MEDIUM", "HIGH"};
+
+    private final StationSchema schema = new StationSchema();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private String[] keys;
+    private byte[][] valid;
+    private byte[][] invalid;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        keys = new String[MESSAGES];
+        valid = new byte[MESSAGES][];
+        invalid = new byte[MESSAGES][];
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < MESSAGES; i++) {
+            long station = 1 + random.nextInt(10_000);
+            keys[i] = String.valueOf(station);
+            String reading = "{\"station_id\":" + station + ",\"s_no\":" + random.nextInt(1_000_000)
+                    + ",\"battery_status\":\"" + BATTERY[random.nextInt(3)] + "\",\"status_timestamp\":"
+                    + (1_700_000_000L + random.nextInt(10_000_000)) + ",\"weather\":{\"humidity\":"
+                    + random.nextInt(101) + ",\"temperature\":" + random.nextInt(-20, 120) + ",\"wind_speed\":"
+                    + random.nextInt(100) + "}}";
+            valid[i] = reading.getBytes(StandardCharsets.UTF_8);
+            // Wrong in its last field, the whole reading has to be scanned to find out
+            invalid[i] = reading.replace("\"wind_speed\":", "\"wind_speed\":-").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public void validateAndEncode(Blackhole blackhole) {
+        int i = next++ & (MESSAGES - 1);
+        if (schema.validate(keys[i], valid[i]) != null) throw new IllegalStateException();
+        blackhole.consume(schema.encode());
+    }
+
+    @Benchmark
+    public String rejectInvalid() {
+        int i = next++ & (MESSAGES - 1);
+        return schema.validate(keys[i], invalid[i]);
+    }
+
+    @Benchmark
+    public void jacksonTree(Blackhole blackhole) throws IOException {
+        int i = next++ & (MESSAGES - 1);
+        JsonNode reading = mapper.readTree(valid[i]);
+        JsonNode weather = reading.get("weather");
+        if (reading.get("station_id").asLong() != Long.parseLong(keys[i]) || !reading.get("s_no").canConvertToLong()
+                || !reading.get("status_timestamp").canConvertToLong() || !reading.get("battery_status").isTextual()
+                || weather.get("humidity").asInt() > 100 || weather.get("wind_speed").asInt() < 0
+                || !weather.get("temperature").isInt()) {
+            throw new IllegalStateException();
+        }
+        blackhole.consume(mapper.writeValueAsBytes(reading));
+    }
+}
@@ -0,0 +1,163 @@
+package org.example;
+
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.StateStore;
+import org.apache.kafka.streams.processor.StateStoreContext;
+import org.apache.kafka.streams.state.StoreBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The newest reading of every station seen since the last flush, on its way to Bitcask.
+//
+// Bitcask only keeps the latest value of a key, so within a window a reading only replaces the
+// buffered one of its station if its s_no is higher, and a flush writes one record per station.
+//
+// It is a state store only for its flush(): Kafka Streams flushes the stores of a task before it
+// commits the task's offsets, so an offset is never committed before Bitcask acknowledged the record.
+// Nothing is kept across restarts, uncommitted records are simply consumed again.
+public class BitcaskBuffer implements StateStore {
+    private final String name;
+    private final BitcaskPool pool;
+    // Position of each station in keys/values
+    private final Map<Long, Integer> positions = new HashMap<>();
+    private final List<Long> keys = new ArrayList<>();
+    private final List<Long> sequenceNumbers = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private long received;
+    private long written;
+    private boolean open;
+
+    public BitcaskBuffer(String name, BitcaskPool pool) {
+        this.name = name;
+        this.pool = pool;
+    }
+
+    // sequenceNumber is the reading's s_no, Long.MAX_VALUE if it has none so that it wins.
+    public void add(long key, long sequenceNumber, byte[] value) {
+        received++;
+        Integer position = positions.get(key);
+        if (position == null) {
+            positions.put(key, keys.size());
+            keys.add(key);
+            sequenceNumbers.add(sequenceNumber);
+            values.add(value);
+        } else if (sequenceNumber >= sequenceNumbers.get(position)) {
+            sequenceNumbers.set(position, sequenceNumber);
+            values.set(position, value);
+        }
+    }
+
+    // Stations buffered
+    public int size() {
+        return keys.size();
+    }
+
+    // Readings added and records written since the start, their ratio is the coalescing factor.
+    public long getReceived() {
+        return received;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    // Writes everything buffered, blocks while Bitcask is unreachable.
+    @Override
+    public void flush() {
+        if (keys.isEmpty()) return;
+        pool.putAll(keys, values);
+        written += keys.size();
+        positions.clear();
+        keys.clear();
+        sequenceNumbers.clear();
+        values.clear();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    @Deprecated
+    public void init(ProcessorContext context, StateStore root) {
+        context.register(root, (key, value) -> {});
+        open = true;
+    }
+
+    @Override
+    public void init(StateStoreContext context, StateStore root) {
+        context.register(root, (key, value) -> {});
+        open = true;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean persistent() {
+        return false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    // One buffer per task, never backed by a changelog.
+    public static class Builder implements StoreBuilder<BitcaskBuffer> {
+        private final String name;
+        private final BitcaskPool pool;
+
+        public Builder(String name, BitcaskPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        @Override
+        public StoreBuilder<BitcaskBuffer> withCachingEnabled() {
+            return this;
+        }
+
+        @Override
+        public StoreBuilder<BitcaskBuffer> withCachingDisabled() {
+            return this;
+        }
+
+        @Override
+        public StoreBuilder<BitcaskBuffer> withLoggingEnabled(Map<String, String> config) {
+            return this;
+        }
+
+        @Override
+        public StoreBuilder<BitcaskBuffer> withLoggingDisabled() {
+            return this;
+        }
+
+        @Override
+        public BitcaskBuffer build() {
+            return new BitcaskBuffer(name, pool);
+        }
+
+        @Override
+        public Map<String, String> logConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public boolean loggingEnabled() {
+            return false;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+    }
+}
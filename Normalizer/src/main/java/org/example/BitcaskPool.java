@@ -0,0 +1,176 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+// A few long-lived connections to Bitcask speaking its binary protocol.
+//
+// A batch is split by key over the connections, so the records of one station always travel on the
+// same connection in order. Every part goes out as pipelined MPUT frames and putAll returns once
+// Bitcask acknowledged all of them, i.e. they are synced.
+//
+// A connection that fails is dropped and the whole batch is sent again after a backoff, for as long as
+// it takes: rewriting a station's latest reading is harmless, and while Bitcask is down the stream
+// thread waits here, so the Kafka lag grows instead of records getting lost.
+public class BitcaskPool implements Closeable {
+    private static final byte MAGIC = (byte) 0xB1;
+    private static final byte MPUT = 5;
+    private static final byte OK = 0;
+    // Frames are kept well below what the server accepts in one request
+    private static final int MAX_FRAME_BYTES = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // A reply that takes longer than this counts as a failed connection, the batch is sent again
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private static final class Connection {
+        // Closed by stop() from another thread to get a blocked putAll out
+        volatile Socket socket;
+        DataOutputStream out;
+        DataInputStream in;
+        int frames;
+    }
+
+    private final String host;
+    private final int port;
+    private final Connection[] connections;
+    private int nextRequestId;
+    private volatile boolean stopping;
+
+    public BitcaskPool(String host, int port, int size) {
+        this.host = host;
+        this.port = port;
+        this.connections = new Connection[size];
+        for (int i = 0; i < size; i++) {
+            connections[i] = new Connection();
+        }
+    }
+
+    // Blocks until every pair is acknowledged. Fails only once stop() was called.
+    public synchronized void putAll(List<Long> keys, List<byte[]> values) {
+        long backoff = 100;
+        while (true) {
+            try {
+                send(keys, values);
+                return;
+            } catch (IOException e) {
+                closeAll();
+                if (stopping) {
+                    throw new IllegalStateException("Stopped with " + keys.size() + " records not written to Bitcask", e);
+                }
+                System.err.println("Bitcask write of " + keys.size() + " records failed (" + e.getMessage()
+                        + "), retrying in " + backoff + " ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted with " + keys.size() + " records not written to Bitcask");
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private void send(List<Long> keys, List<byte[]> values) throws IOException {
+        // The pairs of each connection, in batch order
+        int[][] parts = new int[connections.length][keys.size()];
+        int[] counts = new int[connections.length];
+        for (int i = 0; i < keys.size(); i++) {
+            int c = Math.floorMod(Long.hashCode(keys.get(i)), connections.length);
+            parts[c][counts[c]++] = i;
+        }
+
+        // Everything goes out first, then the acknowledgements are collected
+        for (int c = 0; c < connections.length; c++) {
+            if (counts[c] == 0) continue;
+            Connection connection = connect(connections[c]);
+            int start = 0;
+            while (start < counts[c]) {
+                int end = start;
+                int bytes = 0;
+                while (end < counts[c] && (end == start || bytes + entrySize(values.get(parts[c][end])) <= MAX_FRAME_BYTES)) {
+                    bytes += entrySize(values.get(parts[c][end]));
+                    end++;
+                }
+                connection.out.writeByte(MAGIC);
+                connection.out.writeByte(MPUT);
+                connection.out.writeByte(0);
+                connection.out.writeInt(nextRequestId++);
+                connection.out.writeLong(0);
+                connection.out.writeInt(bytes);
+                for (int n = start; n < end; n++) {
+                    byte[] value = values.get(parts[c][n]);
+                    connection.out.writeLong(keys.get(parts[c][n]));
+                    connection.out.writeInt(value.length);
+                    connection.out.write(value);
+                }
+                connection.frames++;
+                start = end;
+            }
+            connection.out.flush();
+        }
+        for (Connection connection : connections) {
+            while (connection.frames > 0) {
+                if (connection.in.readByte() != MAGIC) throw new IOException("Not a Bitcask binary reply");
+                byte status = connection.in.readByte();
+                connection.in.readInt();
+                connection.in.skipNBytes(connection.in.readInt());
+                connection.frames--;
+                if (status != OK) throw new IOException("Bitcask rejected a batch, status " + status);
+            }
+        }
+    }
+
+    private static int entrySize(byte[] value) {
+        return Long.BYTES + Integer.BYTES + value.length;
+    }
+
+    private Connection connect(Connection connection) throws IOException {
+        if (connection.socket != null) return connection;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            connection.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            connection.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        connection.socket = socket;
+        connection.frames = 0;
+        return connection;
+    }
+
+    private void closeAll() {
+        for (Connection connection : connections) {
+            Socket socket = connection.socket;
+            if (socket == null) continue;
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            connection.socket = null;
+        }
+    }
+
+    // Makes a putAll that is waiting for Bitcask give up, so the application can shut down. Closing
+    // the sockets fails a write or read blocked on them right away.
+    public void stop() {
+        stopping = true;
+        closeAll();
+    }
+
+    // Not synchronized, it mustn't wait for a putAll that is stuck on Bitcask.
+    @Override
+    public void close() {
+        closeAll();
+    }
+}
@@ -0,0 +1,55 @@
+package org.example;
+
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+// Validates the station readings of a task and collects the valid ones into its BitcaskBuffer, which
+// keeps the newest one per station, and writes those as one batch at the end of every window, once
+// batchSize stations are buffered, and before every offset commit. Invalid readings are forwarded
+// unchanged to the invalid message sink with a "reason" header.
+public class BitcaskWriter implements Processor<String, byte[], String, byte[]> {
+    public static final String REASON_HEADER = "reason";
+
+    private final String storeName;
+    private final int batchSize;
+    private final Duration window;
+    private final StationSchema schema = new StationSchema();
+    private ProcessorContext<String, byte[]> context;
+    private BitcaskBuffer buffer;
+
+    public BitcaskWriter(String storeName, int batchSize, Duration window) {
+        this.storeName = storeName;
+        this.batchSize = batchSize;
+        this.window = window;
+    }
+
+    @Override
+    public void init(ProcessorContext<String, byte[]> context) {
+        this.context = context;
+        buffer = context.getStateStore(storeName);
+        context.schedule(window, PunctuationType.WALL_CLOCK_TIME, timestamp -> buffer.flush());
+        context.schedule(Duration.ofMinutes(1), PunctuationType.WALL_CLOCK_TIME, timestamp ->
+                System.out.println("Coalesced " + buffer.getReceived() + " readings into " + buffer.getWritten()
+                        + " Bitcask writes"));
+    }
+
+    @Override
+    public void process(Record<String, byte[]> record) {
+        String reason = record.value() == null ? StationSchema.NOT_JSON : schema.validate(record.key(), record.value());
+        if (reason != null) {
+            // To the invalid message topic as it came, with why it was rejected
+            record.headers().add(REASON_HEADER, reason.getBytes(StandardCharsets.UTF_8));
+            context.forward(record);
+            return;
+        }
+        buffer.add(schema.getStationId(), schema.getSequenceNumber(), schema.encode());
+        if (buffer.size() >= batchSize) {
+            buffer.flush();
+        }
+    }
+}
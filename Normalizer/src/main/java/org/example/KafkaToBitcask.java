@@ -4,12 +4,11 @@ import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.streams.*;
 import org.apache.kafka.streams.kstream.*;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Properties;
 
 public class KafkaToBitcask {
+    private static final String BITCASK_BUFFER = "bitcask-buffer";
 
     public static void main(String[] args) {
 
@@ -41,6 +40,9 @@ public class KafkaToBitcask {
             System.err.println("Environment variables are not set.");
             System.exit(1);
         }
+        // Readings that don't match the station schema go there, with the reason in a header
+        String KAFKA_INVALID_TOPIC = getenv("KAFKA_INVALID_TOPIC", KAFKA_TOPIC + "-invalid");
+
         // Kafka Streams Configuration
         Properties props = new Properties();
         props.put(StreamsConfig.APPLICATION_ID_CONFIG, "message-normailzer");
@@ -48,38 +50,36 @@ public class KafkaToBitcask {
         props.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass());
         props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, Serdes.String().getClass());
 
+        // Writes go over a few persistent connections, in batches acknowledged before offsets are committed.
+        // A batch holds the newest reading of each station seen within the window.
+        int BITCASK_CONNECTIONS = Integer.parseInt(getenv("BITCASK_CONNECTIONS", "2"));
+        int BITCASK_BATCH_SIZE = Integer.parseInt(getenv("BITCASK_BATCH_SIZE", "10000"));
+        long BITCASK_WINDOW_MS = Long.parseLong(getenv("BITCASK_WINDOW_MS", "1000"));
+        BitcaskPool pool = new BitcaskPool(BITCASK_SERVER_HOST, BITCASK_SERVER_PORT, BITCASK_CONNECTIONS);
+
         // Define Stream Processing
         StreamsBuilder builder = new StreamsBuilder();
-        KStream<String, String> stream = builder.stream(KAFKA_TOPIC);
-
-        stream.foreach((key, value) -> {
-            try {
-                Long id = Long.parseLong(key);
+        builder.addStateStore(new BitcaskBuffer.Builder(BITCASK_BUFFER, pool));
+        // Values stay bytes, the schema check scans them in place
+        KStream<String, byte[]> stream = builder.stream(KAFKA_TOPIC, Consumed.with(Serdes.String(), Serdes.ByteArray()));
 
-                // Send to Bitcask server via TCP
-                sendToBitcask(id, value, BITCASK_SERVER_HOST, BITCASK_SERVER_PORT);  // change host/port as needed
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+        stream.process(() -> new BitcaskWriter(BITCASK_BUFFER, BITCASK_BATCH_SIZE, Duration.ofMillis(BITCASK_WINDOW_MS)),
+                        BITCASK_BUFFER)
+                .to(KAFKA_INVALID_TOPIC, Produced.with(Serdes.String(), Serdes.ByteArray()));
 
         KafkaStreams streams = new KafkaStreams(builder.build(), props);
         streams.start();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(streams::close));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // A flush waiting for an unreachable Bitcask gives up, its offsets stay uncommitted
+            pool.stop();
+            streams.close();
+            pool.close();
+        }));
     }
 
-    public static void sendToBitcask(Long key, String value, String host, int port) throws IOException {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter writer = new PrintWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)){
-
-            value = value.replace(',',';');
-            String request = "w" + " " + key + " " + value + "--no-reply";
-            writer.println(request);
-
-        }  catch (IOException e) {
-            e.printStackTrace();
-        }
+    private static String getenv(String name, String fallback) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? fallback : value;
     }
 }
@@ -0,0 +1,330 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Validates a weather station reading and writes it out in the form Bitcask stores:
+//
+//   {"station_id":1;"s_no":1;"battery_status":"low";"status_timestamp":1681521224;
+//    "weather":{"humidity":35;"temperature":100;"wind_speed":13}}
+//
+// The JSON is scanned in place, byte by byte, nothing but the fields of the schema is kept and no
+// tree or string is built on the way. Unknown fields are skipped and left out of the stored form.
+// The separators are ';' as before, commas would break the CSV export of the store.
+//
+// One instance per stream thread: the fields of the last valid reading live in it.
+public class StationSchema {
+    // A reason for every way a reading can be rejected, constants so that rejecting doesn't allocate
+    public static final String NOT_JSON = "not a JSON object";
+    public static final String TRAILING_DATA = "data after the JSON object";
+    public static final String BAD_KEY = "key is not a station id";
+    public static final String KEY_MISMATCH = "station_id differs from the record key";
+    public static final String DUPLICATE_FIELD = "duplicate field";
+    public static final String MISSING_FIELD = "missing field";
+    public static final String NOT_AN_INTEGER = "field is not an integer";
+    public static final String OUT_OF_RANGE = "field out of range";
+    public static final String BAD_BATTERY_STATUS = "battery_status is not low, medium or high";
+    public static final String TOO_DEEP = "nested too deep";
+
+    private static final byte[] STATION_ID = ascii("station_id");
+    private static final byte[] S_NO = ascii("s_no");
+    private static final byte[] BATTERY_STATUS = ascii("battery_status");
+    private static final byte[] STATUS_TIMESTAMP = ascii("status_timestamp");
+    private static final byte[] WEATHER = ascii("weather");
+    private static final byte[] HUMIDITY = ascii("humidity");
+    private static final byte[] TEMPERATURE = ascii("temperature");
+    private static final byte[] WIND_SPEED = ascii("wind_speed");
+    private static final byte[][] BATTERY_LEVELS = {ascii("low"), ascii("medium"), ascii("high")};
+
+    // Bits of the fields seen
+    private static final int HAS_STATION_ID = 1;
+    private static final int HAS_S_NO = 1 << 1;
+    private static final int HAS_BATTERY_STATUS = 1 << 2;
+    private static final int HAS_STATUS_TIMESTAMP = 1 << 3;
+    private static final int HAS_WEATHER = 1 << 4;
+    private static final int HAS_HUMIDITY = 1 << 5;
+    private static final int HAS_TEMPERATURE = 1 << 6;
+    private static final int HAS_WIND_SPEED = 1 << 7;
+    private static final int ALL_FIELDS = (1 << 8) - 1;
+
+    private static final int MAX_DEPTH = 32;
+
+    private long stationId;
+    private long sequenceNumber;
+    private int batteryLevel;
+    private long statusTimestamp;
+    private long humidity;
+    private long temperature;
+    private long windSpeed;
+
+    // Scan state
+    private byte[] json;
+    private int pos;
+    private int seen;
+    private String error;
+
+    // Longest possible stored form: fixed text plus seven longs
+    private final byte[] out = new byte[256];
+    private int outPos;
+
+    // Returns null if the reading is valid, why it isn't otherwise.
+    public String validate(String key, byte[] value) {
+        long id = parseKey(key);
+        if (id < 0) return BAD_KEY;
+        json = value;
+        pos = 0;
+        seen = 0;
+        error = null;
+        try {
+            skipWhitespace();
+            if (!readObject(false)) return error;
+            skipWhitespace();
+            if (pos != json.length) return TRAILING_DATA;
+        } finally {
+            json = null;
+        }
+        if (seen != ALL_FIELDS) return MISSING_FIELD;
+        if (stationId != id) return KEY_MISMATCH;
+        if (sequenceNumber < 0 || statusTimestamp <= 0 || humidity < 0 || humidity > 100 || windSpeed < 0
+                || temperature < Integer.MIN_VALUE || temperature > Integer.MAX_VALUE) {
+            return OUT_OF_RANGE;
+        }
+        return null;
+    }
+
+    public long getStationId() {
+        return stationId;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    // The stored form of the last valid reading.
+    public byte[] encode() {
+        outPos = 0;
+        append("{\"station_id\":").append(stationId);
+        append(";\"s_no\":").append(sequenceNumber);
+        append(";\"battery_status\":\"").append(BATTERY_LEVELS[batteryLevel]);
+        append("\";\"status_timestamp\":").append(statusTimestamp);
+        append(";\"weather\":{\"humidity\":").append(humidity);
+        append(";\"temperature\":").append(temperature);
+        append(";\"wind_speed\":").append(windSpeed);
+        append("}}");
+        return Arrays.copyOf(out, outPos);
+    }
+
+    private static long parseKey(String key) {
+        if (key == null || key.isEmpty() || key.length() > 18) return -1;
+        long id = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    // The top level object, or with weather set the one of the weather field
+    private boolean readObject(boolean weather) {
+        if (!consume('{')) return fail(NOT_JSON);
+        skipWhitespace();
+        if (consume('}')) return true;
+        while (true) {
+            skipWhitespace();
+            int start = pos + 1;
+            if (!skipString()) return fail(NOT_JSON);
+            int end = pos - 1;
+            skipWhitespace();
+            if (!consume(':')) return fail(NOT_JSON);
+            skipWhitespace();
+            if (!(weather ? readWeatherField(start, end) : readField(start, end))) return false;
+            skipWhitespace();
+            if (consume('}')) return true;
+            if (!consume(',')) return fail(NOT_JSON);
+        }
+    }
+
+    private boolean readField(int start, int end) {
+        if (is(start, end, STATION_ID)) {
+            if (!mark(HAS_STATION_ID)) return false;
+            stationId = readLong();
+        } else if (is(start, end, S_NO)) {
+            if (!mark(HAS_S_NO)) return false;
+            sequenceNumber = readLong();
+        } else if (is(start, end, STATUS_TIMESTAMP)) {
+            if (!mark(HAS_STATUS_TIMESTAMP)) return false;
+            statusTimestamp = readLong();
+        } else if (is(start, end, BATTERY_STATUS)) {
+            if (!mark(HAS_BATTERY_STATUS)) return false;
+            return readBatteryStatus();
+        } else if (is(start, end, WEATHER)) {
+            if (!mark(HAS_WEATHER)) return false;
+            if (pos >= json.length || json[pos] != '{') return fail(NOT_JSON);
+            return readObject(true);
+        } else {
+            return skipValue(0);
+        }
+        return error == null;
+    }
+
+    private boolean readWeatherField(int start, int end) {
+        if (is(start, end, HUMIDITY)) {
+            if (!mark(HAS_HUMIDITY)) return false;
+            humidity = readLong();
+        } else if (is(start, end, TEMPERATURE)) {
+            if (!mark(HAS_TEMPERATURE)) return false;
+            temperature = readLong();
+        } else if (is(start, end, WIND_SPEED)) {
+            if (!mark(HAS_WIND_SPEED)) return false;
+            windSpeed = readLong();
+        } else {
+            return skipValue(0);
+        }
+        return error == null;
+    }
+
+    private boolean mark(int field) {
+        if ((seen & field) != 0) return fail(DUPLICATE_FIELD);
+        seen |= field;
+        return true;
+    }
+
+    // An integer without fraction or exponent that fits a long, sets error otherwise.
+    private long readLong() {
+        boolean negative = consume('-');
+        int start = pos;
+        long value = 0;
+        while (pos < json.length && json[pos] >= '0' && json[pos] <= '9') {
+            if (pos - start == 18) {
+                error = OUT_OF_RANGE;
+                return 0;
+            }
+            value = value * 10 + (json[pos++] - '0');
+        }
+        if (pos == start || (pos < json.length && (json[pos] == '.' || json[pos] == 'e' || json[pos] == 'E'))) {
+            error = NOT_AN_INTEGER;
+            return 0;
+        }
+        return negative ? -value : value;
+    }
+
+    // low, medium or high in any case
+    private boolean readBatteryStatus() {
+        int start = pos + 1;
+        if (!skipString()) return fail(NOT_JSON);
+        int end = pos - 1;
+        for (int level = 0; level < BATTERY_LEVELS.length; level++) {
+            byte[] name = BATTERY_LEVELS[level];
+            if (end - start != name.length) continue;
+            int i = 0;
+            while (i < name.length && (json[start + i] | 0x20) == name[i]) i++;
+            if (i == name.length) {
+                batteryLevel = level;
+                return true;
+            }
+        }
+        return fail(BAD_BATTERY_STATUS);
+    }
+
+    private boolean skipValue(int depth) {
+        if (depth > MAX_DEPTH) return fail(TOO_DEEP);
+        if (pos >= json.length) return fail(NOT_JSON);
+        byte c = json[pos];
+        if (c == '"') {
+            return skipString() || fail(NOT_JSON);
+        }
+        if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            pos++;
+            skipWhitespace();
+            if (consume(close)) return true;
+            while (true) {
+                skipWhitespace();
+                if (c == '{') {
+                    if (!skipString()) return fail(NOT_JSON);
+                    skipWhitespace();
+                    if (!consume(':')) return fail(NOT_JSON);
+                    skipWhitespace();
+                }
+                if (!skipValue(depth + 1)) return false;
+                skipWhitespace();
+                if (consume(close)) return true;
+                if (!consume(',')) return fail(NOT_JSON);
+            }
+        }
+        // A number or a literal, only its extent matters here
+        int start = pos;
+        while (pos < json.length && (Character.isLetterOrDigit(json[pos]) || json[pos] == '-' || json[pos] == '+'
+                || json[pos] == '.')) {
+            pos++;
+        }
+        return pos > start || fail(NOT_JSON);
+    }
+
+    // Moves past a string, escapes included. Doesn't validate UTF-8, a value that isn't is skipped whole.
+    private boolean skipString() {
+        if (!consume('"')) return false;
+        while (pos < json.length) {
+            byte c = json[pos++];
+            if (c == '"') return true;
+            if (c == '\\') pos++;
+            else if (c >= 0 && c < 0x20) return false;
+        }
+        return false;
+    }
+
+    private boolean is(int start, int end, byte[] name) {
+        return Arrays.equals(json, start, end, name, 0, name.length);
+    }
+
+    private boolean consume(char c) {
+        if (pos < json.length && json[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length && (json[pos] == ' ' || json[pos] == '\n' || json[pos] == '\r' || json[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private boolean fail(String reason) {
+        if (error == null) error = reason;
+        return false;
+    }
+
+    private StationSchema append(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out[outPos++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    private StationSchema append(byte[] text) {
+        System.arraycopy(text, 0, out, outPos, text.length);
+        outPos += text.length;
+        return this;
+    }
+
+    private void append(long value) {
+        if (value < 0) {
+            out[outPos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) digits++;
+        for (int i = outPos + digits - 1; i >= outPos; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        outPos += digits;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -4,9 +4,9 @@ import time
 import pandas as pd
 import pyarrow.parquet as pq
 from elasticsearch import Elasticsearch, helpers
-from datetime import datetime
+from datetime import datetime, timezone
 import logging
-from typing import Dict, List, Set, Tuple
+from typing import Dict, List, Optional, Set, Tuple
 
 # Configure logging
 logging.basicConfig(
@@ -26,7 +26,9 @@ class ParquetProcessor:
                  elastic_host: str = "localhost",
                  elastic_port: int = 9200,
                  elastic_index: str = "weather_stations_metrics",
-                 scan_interval: int = 300):
+                 scan_interval: int = 300,
+                 start_time: Optional[int] = None,
+                 end_time: Optional[int] = None):
         """
         Initialize the Parquet processor.
         
@@ -37,6 +39,8 @@ class ParquetProcessor:
             elastic_port: Elasticsearch port
             elastic_index: Elasticsearch index name
             scan_interval: Time between directory scans in seconds
+            start_time: Only readings with status_timestamp >= this (Unix seconds)
+            end_time: Only readings with status_timestamp < this (Unix seconds)
         """
         self.parquet_dir = parquet_dir
         self.processed_files_path = processed_files_path
@@ -44,6 +48,8 @@ class ParquetProcessor:
         self.elastic_port = elastic_port
         self.elastic_index = elastic_index
         self.scan_interval = scan_interval
+        self.start_time = start_time
+        self.end_time = end_time
         
         # Load or initialize set of processed files
         self.processed_files = self._load_processed_files()
@@ -62,6 +68,15 @@ class ParquetProcessor:
                 return set(line.strip() for line in f)
         return set()
 
+    def _processed_key(self, file_path: str) -> str:
+        """Entry of a file in the processed list. With --start/--end only the rows in that range
+        were read, so the range is part of the entry and other ranges still read the file."""
+        if self.start_time is None and self.end_time is None:
+            return file_path
+        start = '' if self.start_time is None else self.start_time
+        end = '' if self.end_time is None else self.end_time
+        return f"{file_path}\t{start}-{end}"
+
     def _save_processed_files(self) -> None:
         """Save the set of processed files to disk"""
         with open(self.processed_files_path, 'w') as f:
@@ -91,30 +106,90 @@ class ParquetProcessor:
             logger.info(f"Created Elasticsearch index: {self.elastic_index}")
 
     def _find_parquet_files(self) -> List[str]:
-        """Find all parquet files in the directory structure"""
+        """Find all parquet files in the directory structure, skipping date=/hour= directories outside the time range"""
         all_files = []
-        for root, _, files in os.walk(self.parquet_dir):
+        for root, dirs, files in os.walk(self.parquet_dir):
+            dirs[:] = [d for d in dirs if self._dir_in_range(root, d)]
             for file in files:
                 if file.endswith('.parquet'):
                     all_files.append(os.path.join(root, file))
         return all_files
 
+    def _overlaps(self, start: int, end: int) -> bool:
+        """Whether [start, end) overlaps the time range"""
+        if self.start_time is not None and end <= self.start_time:
+            return False
+        if self.end_time is not None and start >= self.end_time:
+            return False
+        return True
+
+    def _dir_in_range(self, parent: str, name: str) -> bool:
+        """Whether a partition directory can hold readings of the time range"""
+        try:
+            if name.startswith("date="):
+                day = datetime.strptime(name[5:], "%Y-%m-%d").replace(tzinfo=timezone.utc)
+                start = int(day.timestamp())
+                return self._overlaps(start, start + 86400)
+            if name.startswith("hour=") and os.path.basename(parent).startswith("date="):
+                day = datetime.strptime(os.path.basename(parent)[5:], "%Y-%m-%d").replace(tzinfo=timezone.utc)
+                start = int(day.timestamp()) + int(name[5:]) * 3600
+                return self._overlaps(start, start + 3600)
+        except ValueError:
+            pass
+        return True
+
     def _get_station_id_from_path(self, file_path: str) -> str:
         """Extract station ID from file path"""
-        # Path format is expected to be: output_dir/station_id/yyyy_MM_dd/part-XXXXXX.parquet
+        # Path format is expected to be: output_dir/station_id=N/date=yyyy-MM-dd/hour=HH/part-XXXXXX.parquet
         parts = file_path.split(os.sep)
+        for part in parts:
+            if part.startswith("station_id="):
+                return part[len("station_id="):]
         if len(parts) >= 2:
-            return parts[-3]  # Station ID should be the third-last component
+            return parts[-3]  # Older layout: output_dir/station_id/yyyy_MM_dd/part-XXXXXX.parquet
         return "unknown"
 
+    def _read_in_range(self, file_path: str) -> pd.DataFrame:
+        """Read the readings of the time range, skipping row groups whose status_timestamp statistics exclude it"""
+        parquet_file = pq.ParquetFile(file_path)
+        if self.start_time is None and self.end_time is None:
+            return parquet_file.read().to_pandas()
+
+        metadata = parquet_file.metadata
+        row_groups = []
+        for i in range(metadata.num_row_groups):
+            row_group = metadata.row_group(i)
+            keep = True
+            for j in range(row_group.num_columns):
+                column = row_group.column(j)
+                if column.path_in_schema == "status_timestamp":
+                    stats = column.statistics
+                    if stats is not None and stats.has_min_max:
+                        keep = self._overlaps(stats.min, stats.max + 1)
+                    break
+            if keep:
+                row_groups.append(i)
+        logger.info(f"Reading {len(row_groups)} of {metadata.num_row_groups} row groups of {file_path}")
+        if not row_groups:
+            return parquet_file.schema_arrow.empty_table().to_pandas()
+
+        df = parquet_file.read_row_groups(row_groups).to_pandas()
+        if self.start_time is not None:
+            df = df[df['status_timestamp'] >= self.start_time]
+        if self.end_time is not None:
+            df = df[df['status_timestamp'] < self.end_time]
+        return df
+
     def _process_file(self, file_path: str) -> None:
         """Process a single parquet file and update metrics"""
         try:
             logger.info(f"Processing file: {file_path}")
             
-            # Read parquet file
-            table = pq.read_table(file_path)
-            df = table.to_pandas()
+            # Read parquet file, only the part within the time range
+            df = self._read_in_range(file_path)
+            if df.empty:
+                self.processed_files.add(self._processed_key(file_path))
+                return
             
             # Extract station ID from path
             station_id = self._get_station_id_from_path(file_path)
@@ -148,7 +223,7 @@ class ParquetProcessor:
                     metrics["battery_status_counts"][status] += status_counts[status]
             
             # Mark as processed
-            self.processed_files.add(file_path)
+            self.processed_files.add(self._processed_key(file_path))
             
         except Exception as e:
             logger.error(f"Error processing file {file_path}: {str(e)}")
@@ -203,7 +278,9 @@ class ParquetProcessor:
         try:
             # Find all parquet files
             all_files = self._find_parquet_files()
-            new_files = [f for f in all_files if f not in self.processed_files]
+            # A file read without a time range has been read for every range
+            new_files = [f for f in all_files
+                         if f not in self.processed_files and self._processed_key(f) not in self.processed_files]
             
             if not new_files:
                 logger.info("No new files to process")
@@ -253,9 +330,23 @@ if __name__ == "__main__":
                         help="Elasticsearch index name")
     parser.add_argument("--scan-interval", type=int, default=int(os.environ.get("SCAN_INTERVAL", "300")),
                         help="Time between scans in seconds")
+    parser.add_argument("--start", default=os.environ.get("START_TIME"),
+                        help="Only readings at or after this time (Unix seconds or ISO 8601, UTC if no offset)")
+    parser.add_argument("--end", default=os.environ.get("END_TIME"),
+                        help="Only readings before this time (Unix seconds or ISO 8601, UTC if no offset)")
     parser.add_argument("--run-once", action="store_true", help="Run once and exit")
     
     args = parser.parse_args()
+
+    def parse_time(value: Optional[str]) -> Optional[int]:
+        if not value:
+            return None
+        if value.lstrip('-').isdigit():
+            return int(value)
+        parsed = datetime.fromisoformat(value)
+        if parsed.tzinfo is None:
+            parsed = parsed.replace(tzinfo=timezone.utc)
+        return int(parsed.timestamp())
     
     processor = ParquetProcessor(
         parquet_dir=args.parquet_dir,
@@ -263,7 +354,9 @@ if __name__ == "__main__":
         elastic_host=args.elastic_host,
         elastic_port=args.elastic_port,
         elastic_index=args.elastic_index,
-        scan_interval=args.scan_interval
+        scan_interval=args.scan_interval,
+        start_time=parse_time(args.start),
+        end_time=parse_time(args.end)
     )
     
     if args.run_once:
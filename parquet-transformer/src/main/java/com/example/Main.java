@@ -1,101 +1,153 @@
 package com.example;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
-import java.util.stream.Collectors;
 
-import org.apache.avro.Schema;
-import org.apache.avro.reflect.ReflectData;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.StringDeserializer;
-import org.apache.parquet.avro.AvroParquetWriter;
-import org.apache.parquet.hadoop.ParquetWriter;
 import org.apache.parquet.hadoop.metadata.CompressionCodecName;
-import org.apache.parquet.io.OutputFile;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+// Archives the station stream into Parquet files until it is stopped. Offsets are committed only for
+// records whose file was closed, see ParquetArchive.
 public class Main {
-    public static void main(String[] args) {
-        
-        Properties  props = new Properties();
-        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092"); 
-        props.put(ConsumerConfig.GROUP_ID_CONFIG, UUID.randomUUID().toString()); 
+    public static void main(String[] args) throws IOException {
+        String bootstrapServer = getenv("BOOTSTRAP_SERVER", "localhost:9092");
+        String topic = getenv("TOPIC", "weather-station");
+        String outputDir = getenv("OUTPUT_DIR", "/home/karim/weather-stations-monitoring-system/parquet-transformer/src/parqFiles");
+        // A file is closed at whichever limit it reaches first
+        long maxFileRows = Long.parseLong(getenv("MAX_FILE_ROWS", "250000"));
+        long maxFileBytes = Long.parseLong(getenv("MAX_FILE_SIZE_MB", "128")) * 1024 * 1024;
+        long maxFileAgeMillis = Long.parseLong(getenv("MAX_FILE_AGE_SECONDS", "300")) * 1000;
+        // Heap for the records of all open files, the biggest one is closed early past it
+        long maxBufferBytes = Long.parseLong(getenv("MAX_BUFFER_MB", "256")) * 1024 * 1024;
+        long rowGroupBytes = Long.parseLong(getenv("ROW_GROUP_SIZE_MB", "8")) * 1024 * 1024;
+        int pageBytes = Integer.parseInt(getenv("PAGE_SIZE_KB", "64")) * 1024;
+        CompressionCodecName codec = CompressionCodecName.valueOf(getenv("COMPRESSION", "SNAPPY").toUpperCase());
+
+        Properties props = new Properties();
+        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServer);
+        // A fixed group, a restart goes on from the last committed file
+        props.put(ConsumerConfig.GROUP_ID_CONFIG, getenv("GROUP_ID", "parquet-archiver"));
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, getenv("BATCH_SIZE", "1000"));
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
-        
-        Consumer<String,String> consumer = new KafkaConsumer<>(props);
-        consumer.subscribe(List.of("weather-station"));
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        ArrayList<WeatherStationMsg> messages = new ArrayList<>();
-        System.out.println("Starting consumer...");
-        while(true){
-            ConsumerRecords<String,String> jsonMsgs =  consumer.poll(Duration.ofMillis(1000));
-            for ( ConsumerRecord<String,String> rec : jsonMsgs) {
+        ParquetArchive archive = new ParquetArchive(Paths.get(outputDir), maxFileRows, maxFileBytes, maxFileAgeMillis,
+                maxBufferBytes, rowGroupBytes, pageBytes, codec);
+        Consumer<String,String> consumer = new KafkaConsumer<>(props);
+        consumer.subscribe(List.of(topic), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // Whatever was consumed of them is either in a closed file or consumed again by the next owner
                 try {
-                    // Deserialize the JSON string into a WeatherStationMsg object
-                    WeatherStationMsg msg = objectMapper.readValue(rec.value(), WeatherStationMsg.class);
-                    messages.add(msg);
-                } catch (JsonProcessingException e) {
+                    archive.close();
+                    consumer.commitSync(archive.committable());
+                } catch (IOException e) {
                     e.printStackTrace();
+                    consumer.commitSync(archive.committable());
+                    archive.abort();
                 }
+                archive.forget(partitions);
             }
-            if (messages.size() > 10) {
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            }
+        });
+
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            consumer.wakeup();
+            try {
+                mainThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        Map<TopicPartition, OffsetAndMetadata> committed = new HashMap<>();
+        System.out.println("Archiving " + topic + " to " + outputDir);
+        try {
+            while (true) {
+                ConsumerRecords<String,String> jsonMsgs = consumer.poll(Duration.ofMillis(1000));
                 try {
-                    writeParquet(messages);
+                    for (ConsumerRecord<String,String> rec : jsonMsgs) {
+                        TopicPartition partition = new TopicPartition(rec.topic(), rec.partition());
+                        WeatherStationMsg msg;
+                        try {
+                            // Deserialize the JSON string into a WeatherStationMsg object
+                            msg = objectMapper.readValue(rec.value(), WeatherStationMsg.class);
+                        } catch (JsonProcessingException e) {
+                            e.printStackTrace();
+                            archive.skip(partition, rec.offset());
+                            continue;
+                        }
+                        archive.write(msg, partition, rec.offset());
+                    }
+                    archive.rollExpired(System.currentTimeMillis());
                 } catch (IOException e) {
+                    // Nothing of the open files is kept, their records are read again. Files closed
+                    // earlier are committed first, so the rewind doesn't archive them twice.
                     e.printStackTrace();
+                    consumer.commitSync(archive.committable());
+                    archive.abort();
+                    rewind(consumer);
+                    committed.clear();
+                    continue;
+                }
+                Map<TopicPartition, OffsetAndMetadata> offsets = archive.committable();
+                if (!offsets.equals(committed)) {
+                    consumer.commitSync(offsets);
+                    committed = offsets;
                 }
-                messages.clear();
-                break;
             }
+        } catch (WakeupException e) {
+            // Shutting down
+        } finally {
+            try {
+                archive.close();
+                consumer.commitSync(archive.committable());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            consumer.close();
         }
-        
-
-        // consumer.close();
     }
-   public static void writeParquet(List<WeatherStationMsg> batch) throws IOException {
-    System.out.println("Writing to Parquet...");
-    Map<String, List<WeatherStationMsg>> grouped = batch.stream()
-        .collect(Collectors.groupingBy(
-            s -> "station_id=" + s.station_id
-        ));
 
-    for (Map.Entry<String, List<WeatherStationMsg>> entry : grouped.entrySet()) {
-        String partitionPath = "/home/karim/weather-stations-monitoring-system/parquet-transformer/src/parqFiles/" + entry.getKey();
-        java.io.File dir = new java.io.File(partitionPath);
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        Path path = new Path(partitionPath + "/data.parquet");
-        Schema schema = ReflectData.AllowNull.get().getSchema(WeatherStationMsg.class);
-
-        try (ParquetWriter<WeatherStationMsg> writer = AvroParquetWriter
-                .<WeatherStationMsg>builder(path)
-                .withSchema(schema)
-                .withDataModel(ReflectData.get())
-                .withCompressionCodec(CompressionCodecName.SNAPPY)
-                .withConf(new Configuration())
-                .build()) {
-            for (WeatherStationMsg record : entry.getValue()) {
-                writer.write(record);
+    // Back to the last committed offset of every assigned partition.
+    private static void rewind(Consumer<String,String> consumer) {
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(consumer.assignment());
+        for (TopicPartition partition : consumer.assignment()) {
+            OffsetAndMetadata offset = committed.get(partition);
+            if (offset != null) {
+                consumer.seek(partition, offset);
+            } else {
+                consumer.seekToBeginning(List.of(partition));
             }
         }
     }
-}
 
-    
-}
\ No newline at end of file
+    private static String getenv(String name, String fallback) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? fallback : value;
+    }
+}
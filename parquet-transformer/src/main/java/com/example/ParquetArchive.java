@@ -0,0 +1,268 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.reflect.ReflectData;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+// The open Parquet files of the archive, one per partition:
+//
+//   station_id=<id>/date=<yyyy-MM-dd>/hour=<HH>/part-<opened>-<id>.parquet
+//
+// with date and hour of the reading's status_timestamp in UTC, so a reader looking for a time range
+// skips whole directories. A file collects its records until it holds maxRows rows, about maxBytes
+// of data or has been open for maxAgeMillis. They are then written sorted by status_timestamp and
+// s_no, so the min/max statistics of every row group and page cover a narrow range, with bloom
+// filters on both columns. The file is written as .part-...parquet.inprogress and renamed once
+// closed, readers only ever see closed files.
+//
+// The records of all open files together are kept within maxBufferBytes of heap, past it the file
+// holding the most of them is closed early.
+//
+// The Kafka offset of every record is tracked: an offset is committable once every record before it
+// is in a closed file, so a crash loses nothing, the records of the files that were still open are
+// consumed again and their in-progress files are deleted on the next start.
+public class ParquetArchive implements Closeable {
+    private static final String IN_PROGRESS = ".inprogress";
+    private static final Schema SCHEMA = ReflectData.AllowNull.get().getSchema(WeatherStationMsg.class);
+    private static final String[] INDEXED_COLUMNS = {"status_timestamp", "s_no"};
+    private static final DateTimeFormatter PARTITION = DateTimeFormatter.ofPattern("'date='yyyy-MM-dd/'hour='HH")
+            .withZone(ZoneOffset.UTC);
+    private static final Comparator<WeatherStationMsg> ORDER = Comparator
+            .comparingLong((WeatherStationMsg msg) -> msg.status_timestamp)
+            .thenComparingLong(msg -> msg.s_no);
+    // Encoded size of a reading without its battery status: three longs, three ints, null markers
+    private static final int ROW_BYTES = 3 * Long.BYTES + 3 * Integer.BYTES + 8;
+    // Heap of a buffered reading: the message, its weather, the battery status string and the list slot
+    private static final int ROW_HEAP_BYTES = 128;
+
+    private final Path root;
+    private final long maxRows;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long maxBufferBytes;
+    private final long rowGroupBytes;
+    private final int pageBytes;
+    private final CompressionCodecName codec;
+    private final Configuration conf = new Configuration();
+
+    private final Map<String, PartitionFile> open = new HashMap<>();
+    // Heap taken by the records of the open files
+    private long buffered;
+    // Next offset to consume of every partition, as far as records were handed in
+    private final Map<TopicPartition, Long> consumed = new HashMap<>();
+
+    private static final class PartitionFile {
+        final Path inProgress;
+        final Path closed;
+        final long openedAt;
+        final List<WeatherStationMsg> rows = new ArrayList<>();
+        // Offset of the first record in this file of every Kafka partition it has records of
+        final Map<TopicPartition, Long> firstOffsets = new HashMap<>();
+        long bytes;
+
+        PartitionFile(Path inProgress, Path closed, long openedAt) {
+            this.inProgress = inProgress;
+            this.closed = closed;
+            this.openedAt = openedAt;
+        }
+    }
+
+    public ParquetArchive(Path root, long maxRows, long maxBytes, long maxAgeMillis, long maxBufferBytes,
+                          long rowGroupBytes, int pageBytes, CompressionCodecName codec) throws IOException {
+        this.root = root;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBufferBytes = maxBufferBytes;
+        this.rowGroupBytes = rowGroupBytes;
+        this.pageBytes = pageBytes;
+        this.codec = codec;
+        Files.createDirectories(root);
+        deleteInProgress();
+    }
+
+    public void write(WeatherStationMsg msg, TopicPartition partition, long offset) throws IOException {
+        String name = "station_id=" + msg.station_id + "/" + PARTITION.format(Instant.ofEpochSecond(msg.status_timestamp));
+        PartitionFile file = open.get(name);
+        if (file == null) {
+            file = create(name);
+            open.put(name, file);
+        }
+        file.rows.add(msg);
+        file.bytes += ROW_BYTES + (msg.battery_status != null ? msg.battery_status.length() : 0);
+        file.firstOffsets.putIfAbsent(partition, offset);
+        consumed.put(partition, offset + 1);
+        buffered += ROW_HEAP_BYTES;
+        if (file.rows.size() >= maxRows || file.bytes >= maxBytes) {
+            close(file);
+            open.remove(name);
+        }
+        while (buffered > maxBufferBytes) {
+            closeLargest();
+        }
+    }
+
+    // A record that isn't archived, e.g. one that couldn't be parsed
+    public void skip(TopicPartition partition, long offset) {
+        consumed.put(partition, offset + 1);
+    }
+
+    public void rollExpired(long now) throws IOException {
+        Iterator<PartitionFile> files = open.values().iterator();
+        while (files.hasNext()) {
+            PartitionFile file = files.next();
+            if (now - file.openedAt >= maxAgeMillis) {
+                close(file);
+                files.remove();
+            }
+        }
+    }
+
+    // For every partition, the offset every record before which is in a closed file. A file that failed
+    // to close stays open until abort(), so its records are never counted as archived.
+    public Map<TopicPartition, OffsetAndMetadata> committable() {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (Map.Entry<TopicPartition, Long> entry : consumed.entrySet()) {
+            long offset = entry.getValue();
+            for (PartitionFile file : open.values()) {
+                Long first = file.firstOffsets.get(entry.getKey());
+                if (first != null) offset = Math.min(offset, first);
+            }
+            offsets.put(entry.getKey(), new OffsetAndMetadata(offset));
+        }
+        return offsets;
+    }
+
+    // Partitions this consumer no longer owns, to be called once their files are closed.
+    public void forget(Collection<TopicPartition> partitions) {
+        consumed.keySet().removeAll(partitions);
+    }
+
+    // Closes every open file, their records become committable.
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        Iterator<PartitionFile> files = open.values().iterator();
+        while (files.hasNext()) {
+            PartitionFile file = files.next();
+            try {
+                close(file);
+                files.remove();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    // Drops the open files and everything consumed, after a failure. The caller commits what is
+    // committable first and goes back to the committed offsets.
+    public void abort() {
+        for (PartitionFile file : open.values()) {
+            discard(file);
+        }
+        open.clear();
+        consumed.clear();
+        buffered = 0;
+    }
+
+    private void closeLargest() throws IOException {
+        Map.Entry<String, PartitionFile> largest = null;
+        for (Map.Entry<String, PartitionFile> entry : open.entrySet()) {
+            if (largest == null || entry.getValue().rows.size() > largest.getValue().rows.size()) largest = entry;
+        }
+        close(largest.getValue());
+        open.remove(largest.getKey());
+    }
+
+    private PartitionFile create(String name) {
+        Path dir = root.resolve(name);
+        long now = System.currentTimeMillis();
+        String fileName = "part-" + now + "-" + UUID.randomUUID().toString().substring(0, 8) + ".parquet";
+        return new PartitionFile(dir.resolve("." + fileName + IN_PROGRESS), dir.resolve(fileName), now);
+    }
+
+    // Writes the file out, nothing of it is left behind if that fails.
+    private void close(PartitionFile file) throws IOException {
+        buffered -= (long) file.rows.size() * ROW_HEAP_BYTES;
+        try {
+            write(file);
+        } catch (IOException | RuntimeException e) {
+            discard(file);
+            throw e;
+        }
+        System.out.println("Archived " + file.rows.size() + " records to " + file.closed);
+    }
+
+    private void write(PartitionFile file) throws IOException {
+        file.rows.sort(ORDER);
+        Files.createDirectories(file.closed.getParent());
+        AvroParquetWriter.Builder<WeatherStationMsg> builder = AvroParquetWriter
+                .<WeatherStationMsg>builder(new LocalOutputFile(file.inProgress))
+                .withSchema(SCHEMA)
+                .withDataModel(ReflectData.get())
+                .withCompressionCodec(codec)
+                .withRowGroupSize(rowGroupBytes)
+                .withPageSize(pageBytes)
+                .withConf(conf);
+        for (String column : INDEXED_COLUMNS) {
+            // Sized for the rows at hand, every value is about unique
+            builder.withBloomFilterEnabled(column, true).withBloomFilterNDV(column, file.rows.size());
+        }
+        try (ParquetWriter<WeatherStationMsg> writer = builder.build()) {
+            for (WeatherStationMsg msg : file.rows) {
+                writer.write(msg);
+            }
+        }
+        Files.move(file.inProgress, file.closed, StandardCopyOption.ATOMIC_MOVE);
+        // The rename has to be on disk too before offsets are committed
+        try (FileChannel dir = FileChannel.open(file.closed.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+
+    private void discard(PartitionFile file) {
+        try {
+            Files.deleteIfExists(file.inProgress);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Files a previous run didn't get to close, their records weren't committed
+    private void deleteInProgress() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.getFileName().toString().endsWith(IN_PROGRESS)) {
+                    Files.delete(path);
+                    System.out.println("Deleted unfinished file " + path);
+                }
+            }
+        }
+    }
+}